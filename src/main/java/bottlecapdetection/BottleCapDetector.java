@@ -1,13 +1,18 @@
 package bottlecapdetection;
 
 import java.io.File;
+import java.util.List;
 
 import org.bytedeco.ffmpeg.global.avutil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import bottlecapdetection.exceptions.IOException;
+import bottlecapdetection.logic.DetectionServer;
+import bottlecapdetection.logic.NativeMemoryScope;
+import bottlecapdetection.logic.ObjectDetectionBatch;
 import bottlecapdetection.logic.ObjectDetectionRunner;
+import bottlecapdetection.logic.WatchFolder;
 
 /**
  * This is the main class. Taking the start parameters and instantiates and runs the ObjectDetectionRunner.
@@ -36,23 +41,47 @@ public class BottleCapDetector {
 		
 		log.info(Constants.GENERAL_LINE);
 		
+		// Server mode: -server <port> [<ResultDirectory>]
+		if (args != null && args.length >= 2 && args.length <= 3 && args[0].equals("-server")) {
+			startServer(args);
+			return;
+		}
+		
+		// Watch mode: -watch <directory> <ResultDirectory>
+		if (args != null && args.length == 3 && args[0].equals("-watch")) {
+			startWatchFolder(args);
+			return;
+		}
+		
 		// Check general settings:
 		if (args == null || args.length != 2) {
 			printHelp();
 			System.exit(-1);
 		}
 		
+		File outputDir = new File(args[1]);
+		if (!outputDir.mkdir()) {
+			log.debug("Could not create outputDir: {}. Maybe it already exists.", outputDir);
+		}
+		
+		// Batch mode: directory, glob pattern or manifest file
+		if (!ObjectDetectionBatch.isSingleVideo(args[0])) {
+			List<File> videoFiles = ObjectDetectionBatch.resolveVideoFiles(args[0]);
+			if (videoFiles.isEmpty()) {
+				log.info("Could not find any mp4 file. Abort.");
+				System.exit(-1);
+			}
+			new ObjectDetectionBatch(videoFiles, outputDir).execute();
+			log.info(Constants.GENERAL_LINE);
+			return;
+		}
+		
 		// Check, if file exists:
 		File videoFile = new File(args[0]);
 		if (!videoFile.exists()) {
 			log.info("Could not find file. Abort.");
 		}
 		
-		File outputDir = new File(args[1]);
-		if (!outputDir.mkdir()) {
-			log.debug("Could not create outputDir: {}. Maybe it already exists.", outputDir);
-		}
-		
 		// Setting up object detector and run identification process
 		ObjectDetectionRunner odr = new ObjectDetectionRunner(videoFile, outputDir);		
 		odr.execute();
@@ -60,9 +89,72 @@ public class BottleCapDetector {
 		log.info("");
 		odr.getResult().printResults();
 		odr.getResult().storeResultAsImage();
+		odr.getResult().release();
+		NativeMemoryScope.logStatistics();
 		log.info(Constants.GENERAL_LINE);
 	}
 	
+	/**
+	 * Starts the detection server, which runs until the JVM is terminated.
+	 * 
+	 * @param args - Default args from commandline
+	 * @throws IOException - In case the server could not be started
+	 */
+	
+	private static void startServer(String[] args) throws IOException {
+		int port;
+		try {
+			port = Integer.parseInt(args[1]);
+		} catch (NumberFormatException e) {
+			printHelp();
+			throw new IOException("Invalid port: " + args[1]);
+		}
+		
+		File outputDir = null;
+		if (args.length == 3) {
+			outputDir = new File(args[2]);
+			if (!outputDir.mkdir()) {
+				log.debug("Could not create outputDir: {}. Maybe it already exists.", outputDir);
+			}
+		}
+		
+		DetectionServer server = new DetectionServer(port, outputDir);
+		try {
+			server.start();
+		} catch (java.io.IOException e) {
+			throw new IOException("Could not start server on port " + port + ": " + e.getMessage());
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+	}
+	
+	/**
+	 * Starts watching a directory for new mp4 files. It runs until the JVM is terminated.
+	 * 
+	 * @param args - Default args from commandline
+	 * @throws IOException - In case the directory could not be watched
+	 */
+	
+	private static void startWatchFolder(String[] args) throws IOException {
+		File watchDir = new File(args[1]);
+		if (!watchDir.isDirectory()) {
+			printHelp();
+			throw new IOException("Could not find directory: " + watchDir);
+		}
+		
+		File outputDir = new File(args[2]);
+		if (!outputDir.mkdir()) {
+			log.debug("Could not create outputDir: {}. Maybe it already exists.", outputDir);
+		}
+		
+		WatchFolder watchFolder = new WatchFolder(watchDir, outputDir);
+		try {
+			watchFolder.start();
+		} catch (java.io.IOException e) {
+			throw new IOException("Could not watch directory " + watchDir + ": " + e.getMessage());
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(watchFolder::close));
+	}
+	
 	/**
 	 * Prints out this help information
 	 */
@@ -78,8 +170,19 @@ public class BottleCapDetector {
 		log.info("For LINUX : detect.sh <path-to-mp4-file> <ResultDirectory>");
 		log.info("");
 		log.info("    with <path-to-mp4-file> : Path to a single mp4 file.");
+		log.info("                              Or for batch mode: a directory, a glob pattern (e.g. videos/*.mp4)");
+		log.info("                              or a manifest file with one mp4 path per line.");
 		log.info("    with <ResultDirectory> : Result Directory.");
 		log.info("");
+		log.info("Server mode : detect.sh -server <port> [<ResultDirectory>]");
+		log.info("");
+		log.info("    POST http://localhost:<port>/detect with the path of a mp4 file or the mp4 file itself (Content-Type: video/mp4).");
+		log.info("    Returns the counts and the csv lines as json.");
+		log.info("");
+		log.info("Watch mode : detect.sh -watch <directory> <ResultDirectory>");
+		log.info("");
+		log.info("    Processes each mp4 file written into <directory>, as soon as it does not change anymore.");
+		log.info("");
 		log.info(Constants.GENERAL_LINE);
 	}
 	
@@ -1,15 +1,62 @@
 package bottlecapdetection;
 
+import bottlecapdetection.model.LocalizationMode;
+import bottlecapdetection.model.StaticSceneMode;
+import bottlecapdetection.model.SurfaceMode;
+
 public class Constants {
 
 	public static final String GENERAL_LINE = "**********************************************";
-	public static final int GENERAL_MAX_OBJECTS = 15;
+	public static final int GENERAL_MAX_OBJECTS = getPositiveInteger("bottlecap.max.objects", 15);	// in # of objects kept per ROI (the largest ones) - set by -Dbottlecap.max.objects=n, at least 1
+	public static final String GENERAL_BATCH_SUMMARY_FILE = "summary.csv";	// stored in the result directory in batch mode
+	
+	public static final int JOBS_THREADS = Integer.getInteger("bottlecap.jobs.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 4));	// in # of videos processed in parallel - set by -Dbottlecap.jobs.threads=n
+	public static final long JOBS_MEMORY_BUDGET = Long.getLong("bottlecap.jobs.memory", 4096);	// in [MB] of frame buffers of all running jobs - set by -Dbottlecap.jobs.memory=n
+	public static final int JOBS_FRAME_OVERHEAD = 6;						// in # of frames per job beside the buffered frames (static scene, ROI, work copies)
+	public static final boolean JOBS_PIPELINE = Boolean.getBoolean("bottlecap.jobs.pipeline");	// process the stages of the videos in a pipeline instead of whole jobs in parallel - set by -Dbottlecap.jobs.pipeline=true
+	public static final int JOBS_PIPELINE_QUEUE_SIZE = 2;					// in # of jobs waiting in front of each stage
+	public static final int JOBS_PIPELINE_STATICSCENE_WORKERS = 2;			// in # - decoding runs in an additional thread per worker
+	public static final int JOBS_PIPELINE_ROI_WORKERS = 1;					// in #
+	public static final int JOBS_PIPELINE_LOCALIZATION_WORKERS = 1;		// in # - the threshold sweep runs in parallel by itself
+	public static final int JOBS_PIPELINE_OUTPUT_WORKERS = 1;				// in #
+	
+	public static final int SERVER_HTTP_THREADS = 16;						// in # of requests handled at the same time - the jobs run in the job executor
+	public static final int SERVER_WARMUP_RUNS = 3;							// in # of localizations on a synthetic image at boot
+	public static final String SERVER_WARMUP_VIDEO = System.getProperty("bottlecap.server.warmup");	// optional mp4 file processed at boot - set by -Dbottlecap.server.warmup=<path>
+	
+	public static final int WATCH_MAX_FILES = 4;							// in # of files of the watch folder in the pipeline at the same time
+	public static final long WATCH_STABLE_TIME = 5000;						// in [ms] - a file must not change in size and modification time before it is processed
+	public static final long WATCH_POLL_INTERVAL = 1000;					// in [ms] between two checks of the waiting files
+	public static final String WATCH_LEDGER_FILE = "watch-ledger.csv";		// stored in the result directory - files processed by the watch folder
 	
 	public static final int STATICSCENE_MIN_NR_OF_IMG = 40;					// in #
+	public static final StaticSceneMode STATICSCENE_MODE = StaticSceneMode.STREAMING;
+	public static final int STATICSCENE_STREAM_QUEUE_SIZE = 8;				// in # of frames between decoder and analysis
+	public static final int STATICSCENE_STREAM_MAX_CANDIDATES = 8;			// in # of color frames kept as candidates for the median of the improvements
+	public static final int STATICSCENE_PROXY_SCALE = 4;					// gray scale proxy in 1/n of the resolution, 1 = full resolution
+	public static final int STATICSCENE_PYRAMID_STRIDE = 10;				// in # - coarse pass compares every n-th frame
+	public static final int STATICSCENE_PYRAMID_SCALE = 8;					// coarse pass in 1/n of the resolution
+	public static final int STATICSCENE_PYRAMID_SEGMENTS = 3;				// in # - segments refined at full frame rate and resolution
+	public static final int STATICSCENE_STABLE_RUN_LENGTH = 15;				// in # of consecutive frame pairs without motion
+	public static final double STATICSCENE_STABLE_MAX_MOTION = 0.002;		// in [0..1] - ratio of changed pixels
+	public static final int STATICSCENE_STABLE_PIXEL_TOLERANCE = 10;		// in gray levels - smaller differences are noise
+	public static final int STATICSCENE_PARALLEL_CHUNK_SIZE = 16;			// in # of frame pairs compared by one fork-join task
+	
+	public static final boolean DECODE_SEEK = true;							// seek to the first needed frame instead of decoding from the beginning
+	public static final int DECODE_SEEK_MIN_STRIDE = 25;					// in # - larger strides seek from frame to frame
+	public static final long MATPOOL_MAX_BYTES = 256L * 1024 * 1024;		// in bytes - max. size of unused frame buffers kept for reuse
 
 	public static final int ROI_SIDE_EXTENSION = 20;						// in [px]
+	public static final int ROI_PYRAMID_LEVELS = 0;							// in # - ROI search on 1/2^n of the resolution, 0 = full resolution
+	public static final boolean ROI_CACHE_ENABLED = true;					// reuse the ROI of known camera rigs
+	public static final String ROI_CACHE_FILE = "roi-cache.json";			// stored in the result directory
+	public static final int ROI_CACHE_MAX_ENTRIES = 16;						// in # of camera rigs
+	public static final double ROI_CACHE_MAX_DISTANCE = 10.0;				// in gray levels - mean difference of the fingerprints
+	public static final int ROI_CACHE_VALIDATION_TOLERANCE = 16;			// in [px]
 	
 	public static final int ANALYSIS_SLIDING_WINDOW_SIZE = 20; 				// in [px]
+	public static final LocalizationMode ANALYSIS_LOCALIZATION_MODE = LocalizationMode.THRESHOLD_SWEEP;
+	public static final int ANALYSIS_SWEEP_THREADS = Integer.getInteger("bottlecap.sweep.threads", Runtime.getRuntime().availableProcessors());	// in # - set by -Dbottlecap.sweep.threads=n, at most the cores
 	
 	public static final int ANALYSIS_OBJECT_MINIMUM_AREA = 500; 			// in [px]
 	public static final int ANALYSIS_OBJECT_MAXIMUM_AREA = 40000; 			// in [px]
@@ -18,6 +65,8 @@ public class Constants {
 	public static final int ANALYSIS_FILTER_SIDEFACTOR = 6;
 	
 	public static final int COLOR_DIFF = 100;
+	public static final SurfaceMode CLASSIFICATION_SURFACE_MODE = SurfaceMode.COLOR_SAMPLES;
+	public static final double SURFACE_MAX_STDDEV = 40.0;					// in color levels - max. standard deviation of a uniform surface
 	
 	// isCircle / isDeformed Detection
 	public static final double ANALYSIS_BC_DEFORMED_MIN_RATIO = 0.3;		// in [0..1]
@@ -31,4 +80,16 @@ public class Constants {
 	public static final String OUTPUT_LABEL_DISTRACTOR = "Distractor"; 
 	public static final String OUTPUT_LABEL_UNKNOWN = "Unknown";
 	
+	/**
+	 * Reads an integer system property, which must be at least 1.
+	 */
+	
+	private static int getPositiveInteger(String key, int defaultValue) {
+		int value = Integer.getInteger(key, defaultValue);
+		if (value < 1) {
+			throw new IllegalArgumentException(key + " must be at least 1, but is " + value);
+		}
+		return value;
+	}
+	
 }
@@ -0,0 +1,137 @@
+package bottlecapdetection.logic;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bottlecapdetection.model.BottleCapSizeResult;
+import bottlecapdetection.model.DetectedObject;
+
+/**
+ * This class calculates the expected bottle cap length. Therefore a sliding window of size s in [px]
+ * is moved along all objects max side lengths.
+ * For each window position - defined from minPos until maxPos with center c - we determine
+ * all objects, which's max side is in this range and calculate a weighted and squared point value for
+ * this window.
+ *
+ * Be l_1 to l_n the list l of objects in this range, then a point value p is defined as:
+ *
+ * c = minPos + 0.5 * windowSize
+ * p = sum_{i=1}^{n} Math.pow(Math.abs(c - l_i.maxSide), 2) / n
+ *
+ * where i is in {1, ..., n} of the current list of objects in this range and which must
+ * be a separate object.
+ *
+ * Example: s=18px, minPos=50px and current objects (sorted by their maxSides) are
+ * L = {51, 62, 73, 84} then we have a current sliding windows from minPos=50 until
+ * maxPos = minPos + s = 68 and a center of c = minPos + 0.5 * windowSize = 50 + 0.5 * 18 = 59.
+ * Then list of objects l in this range contains the maximal sides of {51, 62}.
+ *
+ * p = sum_{i=1}^{2} (c - l_i)^2 / 2 = ((59-51)^2 + (59-62)^2) / 2 = (64 + 9) / 2 = 36.5.
+ *
+ * While moving this window, we store just the global minimum value p and calculate
+ * the average max side length of all objects l_i in l. Windows covering more objects are preferred,
+ * inner objects being a circle count twice: the inner ring of a cap is often determined as well.
+ *
+ * The global assumption here is, the most of all objects are bottle caps (it does not matter
+ * if they are faceUp, faceDown or Deformed).
+ *
+ * The max sides are sorted once. The objects inside the window are then a range of the sorted array,
+ * whose borders just move forward with the window. The count, the sum and the sum of squares of each
+ * range are read from prefix sums, so p = (n * c^2 - 2 * c * sum + sumOfSquares) / n is evaluated in
+ * constant time for each window position. All sums are exact integer sums.
+ *
+ * @author Alexander Buechel
+ *
+ */
+
+public class BottleCapSizeEstimator {
+
+	private static final Logger log = LoggerFactory.getLogger(BottleCapSizeEstimator.class);
+
+	/**
+	 * Calculates the expected max side length of a bottle cap.
+	 *
+	 * @param objects - The list of objects
+	 * @param windowSize - Size of the sliding window in [px]
+	 * @return the calculated expected max length of a bottle cap and the best window position, both 0 without objects
+	 */
+
+	public static BottleCapSizeResult estimate(List<DetectedObject> objects, int windowSize) {
+		int n = objects.size();
+		if (n == 0) {
+			log.info("Return as expected bottle cap size in [px]: 0.0, no objects found");
+			return new BottleCapSizeResult(0.0, 0);
+		}
+
+		// Sort the objects by their max side, just keeping the max side and the weight
+		double[] maxSides = new double[n];
+		for (int i = 0; i < n; i++) {
+			maxSides[i] = objects.get(i).getMaxSideLength();
+		}
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (i1, i2) -> Double.compare(maxSides[i1], maxSides[i2]));
+
+		double[] sortedSides = new double[n];
+		long[] prefixSum = new long[n + 1];
+		long[] prefixSqSum = new long[n + 1];
+		int[] prefixWeighted = new int[n + 1];
+		for (int k = 0; k < n; k++) {
+			DetectedObject dob = objects.get(order[k]);
+			sortedSides[k] = maxSides[order[k]];
+			long side = (int)sortedSides[k];
+			prefixSum[k + 1] = prefixSum[k] + side;
+			prefixSqSum[k + 1] = prefixSqSum[k] + side * side;
+			prefixWeighted[k + 1] = prefixWeighted[k] + (dob.isInnerObject() && dob.isCircle() ? 1 : 0);
+		}
+
+		int minValueOfRange = (int)sortedSides[0];
+		int maxValueOfRange = (int)sortedSides[n - 1];
+
+		//Store best optValue while iterating
+		double bestOptValue = Double.MAX_VALUE; // Best value = Minimum value; therefore we begin with a large value
+		int mostObjectCount = 0;
+		double avgSide = 0.0;
+		int bestPos = minValueOfRange;
+
+		// Objects sortedSides[first..end-1] are covered by the window [pos, pos + windowSize]
+		int first = 0;
+		int end = 0;
+		for (int pos = minValueOfRange; pos <= maxValueOfRange; pos++) {
+			int l = pos;
+			long c = (int)(pos + 0.5 * windowSize);
+			int r = pos + windowSize;
+
+			while (first < n && sortedSides[first] < l) {
+				first++;
+			}
+			while (end < n && sortedSides[end] <= r) {
+				end++;
+			}
+			int cnt = end - first;
+			if (cnt <= 0) {
+				continue;
+			}
+			long sum = prefixSum[end] - prefixSum[first];
+			long sqSum = prefixSqSum[end] - prefixSqSum[first];
+			int objectCount = cnt + prefixWeighted[end] - prefixWeighted[first];
+			double optValue = (double)(cnt * c * c - 2 * c * sum + sqSum) / cnt;
+
+			// Store new best result, if (1) we found more objects or (2) the same number, but better optimization value
+			if (objectCount > mostObjectCount || (objectCount == mostObjectCount && optValue <= bestOptValue)) {
+				bestOptValue = optValue;
+				bestPos = pos;
+				mostObjectCount = objectCount;
+				avgSide = (double)sum / cnt;
+			}
+		}
+		log.info("Return as expected bottle cap size in [px]: {} based on optimization problem value = {} with {} objects", avgSide, bestOptValue, mostObjectCount);
+		return new BottleCapSizeResult(avgSide, bestPos);
+	}
+
+}
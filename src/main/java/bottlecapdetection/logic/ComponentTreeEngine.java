@@ -0,0 +1,316 @@
+package bottlecapdetection.logic;
+
+import java.util.Arrays;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.opencv.opencv_core.Mat;
+
+import bottlecapdetection.Constants;
+
+import static org.bytedeco.opencv.global.opencv_core.CV_8UC1;
+
+/**
+ * This class counts the useful objects of a gray scale image for all thresholds in a single pass.
+ *
+ * A binary image of threshold t contains all pixels with a gray value larger than t. findContours()
+ * returns the outer contours of the 8-connected foreground components and the contours of their holes,
+ * which are 4-connected background components not touching the image border. Instead of thresholding the
+ * image and finding the contours for each threshold, the pixels are added in order of their gray values to
+ * a union-find structure (max-tree): Going down from 255, each added level corresponds to the binary image
+ * of the next lower threshold. The holes are built the same way going up from 0 on the background.
+ *
+ * For each component the number of pixels and the number of boundary pixels (with at least one
+ * 4-neighbor outside the component) are maintained. The area of the contour polygon through the centers
+ * of the boundary pixels is estimated by Pick's theorem:
+ *
+ * foreground: area = pixels - boundary / 2 - 1 + sum of (hole pixels + hole edges / 2) of the enclosed holes
+ * hole: area = pixels + (boundary + 8) / 2 - 1 (the contour runs along the surrounding foreground pixels)
+ *
+ * Like contourArea() of an outer contour, the area of a foreground component includes its holes (e.g. the
+ * inside of a ring): Each hole adds its pixels and half of the pixels around it (counted by its edges to
+ * the foreground), which are boundary pixels of the component, but inside of its outer contour. The holes
+ * of each threshold are collected by the background pass and added to the component above their topmost pixel.
+ *
+ * So the counts are estimates of the counts based on contourArea(). They are used to select the threshold,
+ * the contours are then found just for this threshold.
+ *
+ * @author Alexander Buechel
+ *
+ */
+
+public class ComponentTreeEngine {
+
+	private static final int[][] NEIGHBORS_4 = {{0, -1}, {-1, 0}, {1, 0}, {0, 1}};
+	private static final int[][] NEIGHBORS_8 = {{-1, -1}, {0, -1}, {1, -1}, {-1, 0}, {1, 0}, {-1, 1}, {0, 1}, {1, 1}};
+
+	/**
+	 * Counts for each threshold 0..255 the number of contours with an estimated area in range
+	 * of ANALYSIS_OBJECT_MINIMUM_AREA and ANALYSIS_OBJECT_MAXIMUM_AREA.
+	 *
+	 * @param matGray - An opencv Mat image object (must be gray scale image)
+	 * @return The number of useful objects for each threshold
+	 */
+
+	public static int[] countUsefulObjects(Mat matGray) {
+		if (matGray.type() != CV_8UC1) {
+			throw new IllegalArgumentException("Expected a gray scale image of type CV_8UC1, but got type " + matGray.type());
+		}
+		int width = matGray.cols();
+		int height = matGray.rows();
+		int[] grayValues = new int[width * height];
+		byte[] row = new byte[width];
+		for (int y = 0; y < height; y++) {
+			BytePointer pointer = matGray.ptr(y);
+			pointer.get(row, 0, width);
+			for (int x = 0; x < width; x++) {
+				grayValues[y * width + x] = row[x] & 0xFF;
+			}
+		}
+
+		// Counting sort of the pixel indices by gray value
+		int[] levelStart = new int[257];
+		for (int gray : grayValues) {
+			levelStart[gray + 1]++;
+		}
+		for (int level = 0; level < 256; level++) {
+			levelStart[level + 1] += levelStart[level];
+		}
+		int[] sortedPixels = new int[grayValues.length];
+		int[] levelPos = levelStart.clone();
+		for (int p = 0; p < grayValues.length; p++) {
+			sortedPixels[levelPos[grayValues[p]]++] = p;
+		}
+
+		int[] counts = new int[256];
+
+		// Holes: after adding the levels 0..L the background of threshold L is complete
+		ComponentForest background = new ComponentForest(width, height, NEIGHBORS_4, true);
+		EnclosedHoles enclosedHoles = new EnclosedHoles();
+		for (int level = 0; level <= 255; level++) {
+			for (int i = levelStart[level]; i < levelStart[level + 1]; i++) {
+				background.add(sortedPixels[i]);
+			}
+			counts[level] += background.getUsefulCnt();
+			enclosedHoles.thresholdStart[level] = enclosedHoles.cnt;
+			background.collectHoles(enclosedHoles);
+		}
+		enclosedHoles.thresholdStart[256] = enclosedHoles.cnt;
+
+		// Foreground: after adding the levels 255..L the binary image of threshold L-1 is complete
+		ComponentForest foreground = new ComponentForest(width, height, NEIGHBORS_8, false);
+		for (int level = 255; level >= 1; level--) {
+			for (int i = levelStart[level]; i < levelStart[level + 1]; i++) {
+				foreground.add(sortedPixels[i]);
+			}
+			foreground.addHoles(enclosedHoles, level - 1, 1);
+			counts[level - 1] += foreground.getUsefulCnt();
+			foreground.addHoles(enclosedHoles, level - 1, -1);
+		}
+
+		return counts;
+	}
+
+	/**
+	 * The holes of all thresholds: for each hole a foreground pixel of its enclosing component (the pixel above
+	 * its topmost pixel) and twice the area it adds to this component.
+	 */
+
+	private static class EnclosedHoles {
+
+		private final int[] thresholdStart = new int[257];
+		private int[] anchors = new int[1024];
+		private int[] areas = new int[1024];
+		private int cnt = 0;
+
+		void add(int anchor, int area) {
+			if (cnt == anchors.length) {
+				anchors = Arrays.copyOf(anchors, cnt * 2);
+				areas = Arrays.copyOf(areas, cnt * 2);
+			}
+			anchors[cnt] = anchor;
+			areas[cnt] = area;
+			cnt++;
+		}
+	}
+
+	/**
+	 * A union-find structure over the pixels of an image. Pixels are added one after another and united
+	 * with their already added neighbors. The number of components with an estimated contour area in range
+	 * is updated with each change.
+	 */
+
+	private static class ComponentForest {
+
+		private final int width;
+		private final int height;
+		private final int[][] neighbors;
+		private final boolean holes;
+
+		private final int[] parent;
+		private final int[] pixelCnt;
+		private final int[] boundaryCnt;
+		private final byte[] addedNeighborCnt;
+		private final boolean[] added;
+		private final boolean[] touchesBorder;
+
+		// Foreground: twice the area of the enclosed holes, just while counting a threshold
+		private final int[] enclosedCnt;
+
+		// Holes: edges to the surrounding pixels, topmost pixel and the current roots
+		private final int[] edgeCnt;
+		private final int[] minPixel;
+		private final int[] roots;
+		private final int[] rootPos;
+		private int rootCnt = 0;
+
+		private int usefulCnt = 0;
+
+		ComponentForest(int width, int height, int[][] neighbors, boolean holes) {
+			this.width = width;
+			this.height = height;
+			this.neighbors = neighbors;
+			this.holes = holes;
+			int size = width * height;
+			this.parent = new int[size];
+			this.pixelCnt = new int[size];
+			this.boundaryCnt = new int[size];
+			this.addedNeighborCnt = new byte[size];
+			this.added = new boolean[size];
+			this.touchesBorder = new boolean[size];
+			this.enclosedCnt = holes ? null : new int[size];
+			this.edgeCnt = holes ? new int[size] : null;
+			this.minPixel = holes ? new int[size] : null;
+			this.roots = holes ? new int[size] : null;
+			this.rootPos = holes ? new int[size] : null;
+		}
+
+		int getUsefulCnt() {
+			return usefulCnt;
+		}
+
+		void add(int p) {
+			int x = p % width;
+			int y = p / width;
+
+			parent[p] = p;
+			pixelCnt[p] = 1;
+			added[p] = true;
+			touchesBorder[p] = x == 0 || y == 0 || x == width - 1 || y == height - 1;
+			if (holes) {
+				minPixel[p] = p;
+				rootPos[p] = rootCnt;
+				roots[rootCnt++] = p;
+			}
+			usefulCnt += isUseful(p);
+
+			for (int[] neighbor : neighbors) {
+				int nx = x + neighbor[0];
+				int ny = y + neighbor[1];
+				if (nx >= 0 && ny >= 0 && nx < width && ny < height && added[ny * width + nx]) {
+					union(p, ny * width + nx);
+				}
+			}
+
+			// Update the boundary pixels: p is a boundary pixel, 4-neighbors may not be anymore
+			int root = find(p);
+			usefulCnt -= isUseful(root);
+			int cnt = 0;
+			for (int[] neighbor : NEIGHBORS_4) {
+				int nx = x + neighbor[0];
+				int ny = y + neighbor[1];
+				if (nx >= 0 && ny >= 0 && nx < width && ny < height && added[ny * width + nx]) {
+					int q = ny * width + nx;
+					cnt++;
+					if (++addedNeighborCnt[q] == 4) {
+						boundaryCnt[root]--;
+					}
+				}
+			}
+			addedNeighborCnt[p] = (byte)cnt;
+			if (cnt < 4) {
+				boundaryCnt[root]++;
+			}
+			if (holes) {
+				// All added 4-neighbors belong to the same component: their shared edges are not outside anymore
+				edgeCnt[root] += 4 - 2 * cnt;
+			}
+			usefulCnt += isUseful(root);
+		}
+
+		/**
+		 * Adds all current holes to the given list. The pixel above the topmost pixel of a hole is not
+		 * background, otherwise it would belong to the hole, so it is a pixel of the enclosing component.
+		 */
+
+		void collectHoles(EnclosedHoles enclosedHoles) {
+			for (int i = 0; i < rootCnt; i++) {
+				int root = roots[i];
+				if (!touchesBorder[root]) {
+					enclosedHoles.add(minPixel[root] - width, 2 * pixelCnt[root] + edgeCnt[root]);
+				}
+			}
+		}
+
+		/**
+		 * Adds (sign = 1) or removes (sign = -1) the holes of a threshold to their enclosing components.
+		 */
+
+		void addHoles(EnclosedHoles enclosedHoles, int threshold, int sign) {
+			for (int i = enclosedHoles.thresholdStart[threshold]; i < enclosedHoles.thresholdStart[threshold + 1]; i++) {
+				int root = find(enclosedHoles.anchors[i]);
+				usefulCnt -= isUseful(root);
+				enclosedCnt[root] += sign * enclosedHoles.areas[i];
+				usefulCnt += isUseful(root);
+			}
+		}
+
+		private int find(int p) {
+			while (parent[p] != p) {
+				parent[p] = parent[parent[p]];
+				p = parent[p];
+			}
+			return p;
+		}
+
+		private void union(int p, int q) {
+			int rootP = find(p);
+			int rootQ = find(q);
+			if (rootP == rootQ) {
+				return;
+			}
+			usefulCnt -= isUseful(rootP) + isUseful(rootQ);
+			if (pixelCnt[rootP] < pixelCnt[rootQ]) {
+				int tmp = rootP;
+				rootP = rootQ;
+				rootQ = tmp;
+			}
+			parent[rootQ] = rootP;
+			pixelCnt[rootP] += pixelCnt[rootQ];
+			boundaryCnt[rootP] += boundaryCnt[rootQ];
+			touchesBorder[rootP] |= touchesBorder[rootQ];
+			if (holes) {
+				edgeCnt[rootP] += edgeCnt[rootQ];
+				minPixel[rootP] = Math.min(minPixel[rootP], minPixel[rootQ]);
+				// Remove rootQ from the roots by moving the last root to its position
+				int last = roots[--rootCnt];
+				roots[rootPos[rootQ]] = last;
+				rootPos[last] = rootPos[rootQ];
+			}
+			usefulCnt += isUseful(rootP);
+		}
+
+		private int isUseful(int root) {
+			double area;
+			if (holes) {
+				if (touchesBorder[root]) {
+					return 0;
+				}
+				area = pixelCnt[root] + (boundaryCnt[root] + 8) / 2.0 - 1;
+			} else {
+				area = pixelCnt[root] - boundaryCnt[root] / 2.0 - 1 + enclosedCnt[root] / 2.0;
+			}
+			return area < Constants.ANALYSIS_OBJECT_MINIMUM_AREA || area > Constants.ANALYSIS_OBJECT_MAXIMUM_AREA ? 0 : 1;
+		}
+	}
+
+}
@@ -0,0 +1,120 @@
+package bottlecapdetection.logic;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.bytedeco.opencv.opencv_core.Rect;
+
+import bottlecapdetection.model.DetectedObject;
+
+/**
+ * This class holds the inner/outer relations of a list of objects: An object is the child of another
+ * object (its parent), if the parent contains it according to DetectedObject.rectIsInObject().
+ *
+ * The relations are determined once with a grid over the bounding boxes. Each object is registered in all
+ * grid cells its bounding box overlaps, so just the objects registered in the cell of a child's center
+ * have to be checked instead of all objects. The parents and children of each object are stored in the
+ * order of the list, so passes over the graph see the objects in the same order as a scan over all pairs.
+ *
+ * @author Alexander Buechel
+ *
+ */
+
+public class ContainmentGraph {
+
+	private final List<List<Integer>> parents = new ArrayList<>();
+	private final List<List<Integer>> children = new ArrayList<>();
+	private int relationCnt = 0;
+
+	/**
+	 * Builds the graph of the given objects. The graph refers to the objects by their index in the list.
+	 *
+	 * @param objects - The list of objects
+	 */
+
+	public ContainmentGraph(List<DetectedObject> objects) {
+		int n = objects.size();
+		for (int i = 0; i < n; i++) {
+			parents.add(new ArrayList<>());
+			children.add(new ArrayList<>());
+		}
+		if (n == 0) {
+			return;
+		}
+
+		// The cell size is the mean side of the bounding boxes, so each box overlaps just a few cells
+		int minX = Integer.MAX_VALUE;
+		int minY = Integer.MAX_VALUE;
+		int maxX = Integer.MIN_VALUE;
+		int maxY = Integer.MIN_VALUE;
+		long sideSum = 0;
+		for (DetectedObject o : objects) {
+			Rect bb = o.getBoundingBox();
+			minX = Math.min(minX, bb.x());
+			minY = Math.min(minY, bb.y());
+			maxX = Math.max(maxX, bb.x() + bb.width());
+			maxY = Math.max(maxY, bb.y() + bb.height());
+			sideSum += Math.max(bb.width(), bb.height());
+		}
+		int cellSize = (int)Math.max(1, sideSum / n);
+		int cols = (maxX - minX) / cellSize + 1;
+		int rows = (maxY - minY) / cellSize + 1;
+
+		// Register the objects in index order, so each cell lists its objects in ascending order
+		List<List<Integer>> cells = new ArrayList<>(cols * rows);
+		for (int c = 0; c < cols * rows; c++) {
+			cells.add(new ArrayList<>());
+		}
+		for (int j = 0; j < n; j++) {
+			Rect bb = objects.get(j).getBoundingBox();
+			int col1 = (bb.x() - minX) / cellSize;
+			int col2 = (bb.x() + bb.width() - minX) / cellSize;
+			int row1 = (bb.y() - minY) / cellSize;
+			int row2 = (bb.y() + bb.height() - minY) / cellSize;
+			for (int row = row1; row <= row2; row++) {
+				for (int col = col1; col <= col2; col++) {
+					cells.get(row * cols + col).add(j);
+				}
+			}
+		}
+
+		// A parent contains the center of its child (same calculation as in rectIsInObject())
+		for (int i = 0; i < n; i++) {
+			DetectedObject o = objects.get(i);
+			Rect bb = o.getBoundingBox();
+			int centerX = bb.x() + (bb.width() / 2);
+			int centerY = bb.y() + (bb.height() / 2);
+			for (int j : cells.get(((centerY - minY) / cellSize) * cols + (centerX - minX) / cellSize)) {
+				if (i != j && objects.get(j).rectIsInObject(bb, o.getAreaSize())) {
+					parents.get(i).add(j);
+					children.get(j).add(i);
+					relationCnt++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param idx - Index of an object
+	 * @return The indices of all objects containing this object in ascending order
+	 */
+
+	public List<Integer> getParents(int idx) {
+		return Collections.unmodifiableList(parents.get(idx));
+	}
+
+	/**
+	 * @param idx - Index of an object
+	 * @return The indices of all objects contained by this object in ascending order
+	 */
+
+	public List<Integer> getChildren(int idx) {
+		return Collections.unmodifiableList(children.get(idx));
+	}
+
+	public int getRelationCnt() {
+		return relationCnt;
+	}
+
+}
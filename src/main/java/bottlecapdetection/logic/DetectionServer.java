@@ -0,0 +1,251 @@
+package bottlecapdetection.logic;
+
+import static org.bytedeco.opencv.global.opencv_core.CV_8UC3;
+import static org.bytedeco.opencv.global.opencv_imgproc.FILLED;
+import static org.bytedeco.opencv.global.opencv_imgproc.LINE_8;
+import static org.bytedeco.opencv.global.opencv_imgproc.circle;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avformat;
+import org.bytedeco.ffmpeg.global.swscale;
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Point;
+import org.bytedeco.opencv.opencv_core.Scalar;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import bottlecapdetection.Constants;
+import bottlecapdetection.model.DetectionResponse;
+import bottlecapdetection.model.ObjectDetectionJobResult;
+
+/**
+ * This class is a long running detection service. It binds to a local port and processes the videos of
+ * all requests in the same JVM, so a request just takes the processing time of its video.
+ *
+ * POST /detect : The body is the path of a mp4 file (as text or as json {"video": "<path>"}), or with
+ *                Content-Type video/mp4 the mp4 file itself. The response is the json of DetectionResponse,
+ *                HTTP status 200 in case of success, 422 in case of a failed detection.
+ * GET /health  : The json {"status": "UP", "runningJobs": n, "processedJobs": n}
+ *
+ * Concurrent requests are handled by Constants.SERVER_HTTP_THREADS threads, the jobs themselves run in the
+ * ObjectDetectionExecutor with its thread and memory limits. Before the port is bound, a warm-up loads the
+ * native libraries and runs the localization on a synthetic image (and a warm-up video, if configured).
+ *
+ * @author Alexander Buechel
+ *
+ */
+
+public class DetectionServer implements AutoCloseable {
+
+	private static final Logger log = LoggerFactory.getLogger(DetectionServer.class);
+
+	private static final Gson gson = new Gson();
+
+	private final int port;
+	private final File outputDir;
+	private final ObjectDetectionExecutor jobExecutor;
+	private final AtomicLong processedJobs = new AtomicLong(0);
+	private HttpServer server = null;
+	private ExecutorService httpExecutor = null;
+
+	/**
+	 * @param port - Local port, 0 for any free port
+	 * @param outputDir - The result directory (for the ROI cache) or null
+	 */
+
+	public DetectionServer(int port, File outputDir) {
+		this.port = port;
+		this.outputDir = outputDir;
+		this.jobExecutor = new ObjectDetectionExecutor();
+	}
+
+	/**
+	 * Performs the warm-up and starts the server on the loopback address.
+	 *
+	 * @throws IOException - In case the port could not be bound
+	 */
+
+	public void start() throws IOException {
+		warmUp();
+
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/detect", this::handleDetect);
+		server.createContext("/health", this::handleHealth);
+		AtomicInteger threadCnt = new AtomicInteger(0);
+		httpExecutor = Executors.newFixedThreadPool(Constants.SERVER_HTTP_THREADS, runnable -> {
+			Thread thread = new Thread(runnable, "http-" + threadCnt.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		server.setExecutor(httpExecutor);
+		server.start();
+		log.info("Detection server is listening on http://{}:{}/detect", server.getAddress().getHostString(), getPort());
+	}
+
+	/**
+	 * @return The bound port
+	 */
+
+	public int getPort() {
+		return server != null ? server.getAddress().getPort() : port;
+	}
+
+	/**
+	 * Loads the native libraries and runs the localization a few times on a synthetic image, so the first request
+	 * does not pay for loading and compiling. If Constants.SERVER_WARMUP_VIDEO is set, this video is processed as well.
+	 */
+
+	@SuppressWarnings("try") // The scope just frees the native objects of each run
+	private void warmUp() {
+		long start = System.currentTimeMillis();
+		try {
+			Loader.load(avcodec.class);
+			Loader.load(avformat.class);
+			Loader.load(swscale.class);
+			for (int run = 0; run < Constants.SERVER_WARMUP_RUNS; run++) {
+				try (NativeMemoryScope scope = new NativeMemoryScope("warmUp")) {
+					Mat image = new Mat(600, 800, CV_8UC3, new Scalar(60, 60, 60, 0));
+					for (int i = 0; i < 6; i++) {
+						circle(image, new Point(100 + i * 110, 200 + (i % 2) * 200), 40, new Scalar(200, 200, 200, 0), FILLED, LINE_8, 0);
+					}
+					Logic.localizeAndClassifyObjects(image);
+				}
+			}
+			if (Constants.SERVER_WARMUP_VIDEO != null) {
+				ObjectDetectionJobResult result = ObjectDetectionExecutor.getResult(jobExecutor.submit(new File(Constants.SERVER_WARMUP_VIDEO), outputDir));
+				result.release();
+			}
+		} catch (Exception e) {
+			log.warn("Warm-up failed: {}", e.toString());
+		}
+		log.info("Warm-up finished in {} ms.", System.currentTimeMillis() - start);
+	}
+
+	private void handleDetect(HttpExchange exchange) throws IOException {
+		File uploadedFile = null;
+		try {
+			if (!"POST".equals(exchange.getRequestMethod())) {
+				sendJson(exchange, 405, error("Use POST with the path of a mp4 file or the mp4 file itself."));
+				return;
+			}
+
+			File videoFile;
+			String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+			if (contentType != null && (contentType.startsWith("video/") || contentType.startsWith("application/octet-stream"))) {
+				uploadedFile = File.createTempFile("upload-", ".mp4");
+				try (InputStream body = exchange.getRequestBody()) {
+					Files.copy(body, uploadedFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+				videoFile = uploadedFile;
+			} else {
+				videoFile = parseVideoPath(exchange);
+				if (videoFile == null) {
+					sendJson(exchange, 400, error("Missing path of a mp4 file."));
+					return;
+				}
+			}
+
+			ObjectDetectionJobResult result = ObjectDetectionExecutor.getResult(jobExecutor.submit(videoFile, outputDir));
+			DetectionResponse response = new DetectionResponse(result);
+			result.release();
+			processedJobs.incrementAndGet();
+			log.info("Processed {} in {} ms: {}", videoFile.getName(), result.getDuration(), result.getFailedMsg().isEmpty() ? "OK" : result.getFailedMsg());
+			sendJson(exchange, response.getFailedMsg().isEmpty() ? 200 : 422, gson.toJson(response));
+		} catch (InterruptedException e) {
+			sendJson(exchange, 503, error("Server is shutting down."));
+			Thread.currentThread().interrupt();
+		} catch (Throwable e) {
+			// Like the jobs themselves, any failure (e.g. an OutOfMemoryError) is answered instead of dropping the request
+			log.warn("Request failed:", e);
+			sendJson(exchange, 500, error(e.toString()));
+		} finally {
+			if (uploadedFile != null && !uploadedFile.delete()) {
+				log.debug("Could not delete uploaded file: {}", uploadedFile);
+			}
+		}
+	}
+
+	/**
+	 * Reads the video path of the request body: plain text or json {"video": "<path>"}. A malformed json body
+	 * gives null like a missing path, so it is answered as a bad request.
+	 */
+
+	private static File parseVideoPath(HttpExchange exchange) throws IOException {
+		String body;
+		try (InputStream in = exchange.getRequestBody()) {
+			body = new String(in.readAllBytes(), StandardCharsets.UTF_8).trim();
+		}
+		if (body.startsWith("{")) {
+			try {
+				JsonObject json = JsonParser.parseString(body).getAsJsonObject();
+				body = json.has("video") ? json.get("video").getAsString().trim() : "";
+			} catch (JsonParseException | IllegalStateException | UnsupportedOperationException e) {
+				log.debug("Could not parse request body: {}", e.getMessage());
+				return null;
+			}
+		}
+		return body.isEmpty() ? null : new File(body);
+	}
+
+	private void handleHealth(HttpExchange exchange) throws IOException {
+		Map<String, Object> health = new TreeMap<>();
+		health.put("status", "UP");
+		health.put("runningJobs", jobExecutor.getRunningJobs());
+		health.put("processedJobs", processedJobs.get());
+		sendJson(exchange, 200, gson.toJson(health));
+	}
+
+	private static String error(String message) {
+		JsonObject json = new JsonObject();
+		json.addProperty("failedMsg", message);
+		return json.toString();
+	}
+
+	private static void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+		byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	/**
+	 * Stops the server after the running requests are answered.
+	 */
+
+	@Override
+	public void close() {
+		if (server != null) {
+			server.stop(1);
+			httpExecutor.shutdown();
+		}
+		jobExecutor.close();
+		log.info("Detection server stopped after {} jobs.", processedJobs.get());
+	}
+
+}
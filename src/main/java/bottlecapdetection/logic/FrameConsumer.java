@@ -0,0 +1,57 @@
+package bottlecapdetection.logic;
+
+import bottlecapdetection.exceptions.MatException;
+import bottlecapdetection.model.VideoFrame;
+
+/**
+ * A FrameConsumer receives the frames of a video while they are decoded by the Mp4FileLoader.
+ * 
+ * @author Alexander Buechel
+ *
+ */
+
+public interface FrameConsumer {
+
+	/**
+	 * Called once before the first frame is passed.
+	 * 
+	 * @param firstIdx - Index of the first frame, which will be passed
+	 * @param lastIdx - Index of the last frame, which will be passed at most
+	 * @param totalFrameCnt - Total number of frames of the video
+	 * @throws MatException - In case the video does not fit the expectations of the consumer
+	 */
+	
+	void start(int firstIdx, int lastIdx, int totalFrameCnt) throws MatException;
+	
+	/**
+	 * Called for each decoded frame in ascending order. The consumer owns the given 
+	 * Mat objects and is responsible for freeing them.
+	 * 
+	 * @param videoFrame - The decoded frame
+	 * @return true, if more frames are needed; false to stop decoding
+	 * @throws MatException - In case of invalid data structures
+	 */
+	
+	boolean accept(VideoFrame videoFrame) throws MatException;
+	
+	/**
+	 * Defines the gray scale proxy, which is created for each frame.
+	 * 
+	 * @return 0 for no proxy, 1 for a gray scale image of full resolution, n for 1/n of the resolution
+	 */
+	
+	default int getProxyScale() {
+		return 0;
+	}
+	
+	/**
+	 * Defines, if the full resolution color frames are passed.
+	 * 
+	 * @return true, if the color frames are needed; otherwise false
+	 */
+	
+	default boolean needsColorFrames() {
+		return true;
+	}
+	
+}
@@ -0,0 +1,114 @@
+package bottlecapdetection.logic;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.bytedeco.opencv.global.opencv_core.CV_8UC1;
+
+/**
+ * This class determines the best threshold of a gray scale image based on its histogram.
+ *
+ * A binary image of threshold t contains all pixels with a gray value larger than t (THRESH_BINARY).
+ * So the number of non-zero pixels for each threshold can be read from the cumulative sums of a
+ * single 256-bin histogram, instead of thresholding the complete image for each candidate.
+ *
+ * @author Alexander Buechel
+ *
+ */
+
+public class HistogramThresholdEngine {
+
+	private static final Logger log = LoggerFactory.getLogger(HistogramThresholdEngine.class);
+
+	private static final int FIRST_THRESHOLD = 100;
+	private static final int LAST_THRESHOLD = 150;
+	private static final int THRESHOLD_STEP = 5;
+
+	/**
+	 * Calculates the best threshold of a gray scale image.
+	 *
+	 * @see #findBestThreshold(long[])
+	 * @param matGray - An opencv Mat image object (must be gray scale image)
+	 * @return the best found threshold
+	 */
+
+	public static int findBestThreshold(Mat matGray) {
+		return findBestThreshold(calculateHistogram(matGray));
+	}
+
+	/**
+	 * Calculates the best threshold based on a histogram. The candidates are 105, 110, ..., 150.
+	 * For each candidate the number of non-zero pixels is compared to the one of the previous
+	 * threshold (starting with 100). The candidate with the smallest difference is taken, in case
+	 * of ties the smaller threshold.
+	 *
+	 * @param histogram - A histogram with 256 bins
+	 * @return the best found threshold
+	 */
+
+	public static int findBestThreshold(long[] histogram) {
+		long[] aboveCnts = calculateAboveCounts(histogram);
+
+		int bestThreshold = -1;
+		long bestDiffValue = -1;
+
+		long last = aboveCnts[FIRST_THRESHOLD];
+		for (int step = FIRST_THRESHOLD + THRESHOLD_STEP; step <= LAST_THRESHOLD; step = step + THRESHOLD_STEP) {
+			long result = aboveCnts[step];
+			long compRes = Math.max(last, result) - Math.min(last, result);
+			last = result;
+			// Save currently best result
+			if (bestThreshold == -1 || compRes < bestDiffValue) {
+				bestDiffValue = compRes;
+				bestThreshold = step;
+			}
+		}
+		log.debug("Determine best threshold by histogram: {}", bestThreshold);
+		return bestThreshold;
+	}
+
+	/**
+	 * Calculates the histogram of a gray scale image in a single pass.
+	 *
+	 * @param matGray - An opencv Mat image object (must be gray scale image)
+	 * @return The number of pixels for each gray value 0..255
+	 */
+
+	public static long[] calculateHistogram(Mat matGray) {
+		if (matGray.type() != CV_8UC1) {
+			throw new IllegalArgumentException("Expected a gray scale image of type CV_8UC1, but got type " + matGray.type());
+		}
+		long[] histogram = new long[256];
+		int cols = matGray.cols();
+		byte[] row = new byte[cols];
+		for (int y = 0; y < matGray.rows(); y++) {
+			BytePointer pointer = matGray.ptr(y);
+			pointer.get(row, 0, cols);
+			for (int x = 0; x < cols; x++) {
+				histogram[row[x] & 0xFF]++;
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * Calculates for each threshold t the number of pixels with a gray value larger than t.
+	 * This is the number of non-zero pixels after threshold(t, THRESH_BINARY).
+	 *
+	 * @param histogram - A histogram with 256 bins
+	 * @return The number of pixels above each threshold 0..255
+	 */
+
+	public static long[] calculateAboveCounts(long[] histogram) {
+		long[] aboveCnts = new long[histogram.length];
+		long sum = 0;
+		for (int t = histogram.length - 1; t >= 0; t--) {
+			aboveCnts[t] = sum;
+			sum += histogram[t];
+		}
+		return aboveCnts;
+	}
+
+}
@@ -1,11 +1,13 @@
 package bottlecapdetection.logic;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
-import org.bytedeco.javacpp.indexer.UByteRawIndexer;
 import org.bytedeco.opencv.opencv_core.Mat;
 import org.bytedeco.opencv.opencv_core.MatVector;
 import org.bytedeco.opencv.opencv_core.Point;
@@ -21,11 +23,12 @@ import bottlecapdetection.model.BinaryResult;
 import bottlecapdetection.model.BottleCapSizeResult;
 import bottlecapdetection.model.ClassificationType;
 import bottlecapdetection.model.DetectedObject;
+import bottlecapdetection.model.LocalizationMode;
 import bottlecapdetection.model.ObjectDetectionResult;
 import bottlecapdetection.model.ROIResult;
-import bottlecapdetection.model.color.Color;
+import bottlecapdetection.model.SurfaceMode;
+import bottlecapdetection.model.ThresholdSweepResult;
 import bottlecapdetection.model.color.Colors;
-import bottlecapdetection.model.MaxSidesObjects;
 
 import static org.bytedeco.opencv.global.opencv_imgproc.*;
 import static org.bytedeco.opencv.global.opencv_core.*;
@@ -63,29 +66,14 @@ public class Logic {
 	 * This method calculates a threshold for a binary transformed image.
 	 * This value will be in range [75, ..., 150] and is defined as the 
 	 * minimum difference (number of non-zero-based pixels) to the value
-	 * before.
+	 * before. The numbers of non-zero-based pixels are taken from the
+	 * histogram of the image (see HistogramThresholdEngine).
 	 * 
 	 * @param mat - An opencv Mat image object (must be gray scale image)
 	 * @return the best found threshold
 	 */
 	public static int findBestThresholdForROI(Mat matGray) {
-		int bestThreshold = -1;
-		long bestDiffValue = -1;
-
-		Mat last = new Mat();
-		threshold(matGray, last, 100, 255, THRESH_BINARY);
-
-		for (int step = 105; step <= 150; step = step + 5) {
-			Mat result = new Mat();
-			threshold(matGray, result, step, 255, THRESH_BINARY);
-			long compRes = Logic.compareImages(last, result);
-			last = result;
-			// Save currently best result
-			if (bestThreshold == -1 || compRes < bestDiffValue) {
-				bestDiffValue = compRes;
-				bestThreshold = step;
-			}
-		}
+		int bestThreshold = HistogramThresholdEngine.findBestThreshold(matGray);
 		log.debug("Determine best threshold for ROI: {}", bestThreshold);
 		return bestThreshold;
 	}
@@ -121,38 +109,222 @@ public class Logic {
 	      Mat matGray = new Mat();
 	      cvtColor(matColor, matGray, COLOR_BGR2GRAY);
 	      GaussianBlur(matGray, matGray, new Size(11, 11), 0);
-	      int bestThreshold = Logic.findBestThresholdForROI(matGray);
+	      int bestThreshold = HistogramThresholdEngine.findBestThreshold(matGray);
 	      Mat binaryMat = new Mat();
 	      threshold(matGray, binaryMat, bestThreshold, 255, THRESH_BINARY);
+	      matGray.deallocate();
 	      return new BinaryResult(binaryMat, bestThreshold);
 	}
 	
 	public static BinaryResult toBinaryImage(Mat matColor, int threshold) {
-	      Mat matGray = new Mat();
-	      cvtColor(matColor, matGray, COLOR_BGR2GRAY);
-	      GaussianBlur(matGray, matGray, new Size(11, 11), 0);
+	      Mat matGray = toBlurredGrayImage(matColor);
 	      Mat binaryMat = new Mat();
 	      threshold(matGray, binaryMat, threshold, 255, THRESH_BINARY);
+	      matGray.deallocate();
 	      return new BinaryResult(binaryMat, threshold);
 	}
 	
+	/**
+	 * Transforms an image to a gray scale image and smooths it with a Gaussian blur (11x11).
+	 * This is the common preprocessing before thresholding.
+	 * 
+	 * @param matColor A mat object
+	 * @return The blurred gray scale image
+	 */
+	
+	public static Mat toBlurredGrayImage(Mat matColor) {
+	      Mat matGray = new Mat();
+	      cvtColor(matColor, matGray, COLOR_BGR2GRAY);
+	      GaussianBlur(matGray, matGray, new Size(11, 11), 0);
+	      return matGray;
+	}
+	
+	/**
+	 * Thresholds the ROI with 100, 102, ..., 160 and finds the contours for each binary image.
+	 * The contours of the threshold with the most useful objects (area in range of
+	 * ANALYSIS_OBJECT_MINIMUM_AREA and ANALYSIS_OBJECT_MAXIMUM_AREA) are returned. In case of ties
+	 * the higher threshold is taken.
+	 * 
+	 * The gray scale and blurred ROI is calculated once for all thresholds. The contours of
+	 * all other thresholds are freed. The thresholds are processed by ThresholdSweepExecutor.getSweepThreads()
+	 * threads.
+	 * 
+	 * With Constants.ANALYSIS_LOCALIZATION_MODE = COMPONENT_TREE the threshold is selected by the
+	 * ComponentTreeEngine instead.
+	 * 
+	 * @param roi - The Mat-Object representing ROI
+	 * @return The contours, the threshold and the number of useful objects
+	 */
+	
+	public static ThresholdSweepResult findContoursWithMostObjects(Mat roi) {
+		if (Constants.ANALYSIS_LOCALIZATION_MODE == LocalizationMode.COMPONENT_TREE) {
+			return findContoursByComponentTree(roi);
+		}
+		return findContoursWithMostObjects(roi, ThresholdSweepExecutor.getSweepThreads());
+	}
+	
+	/**
+	 * Selects the threshold 100, 102, ..., 160 with the most useful objects based on the estimated
+	 * counts of the ComponentTreeEngine. In case of ties the higher threshold is taken. The contours are
+	 * found just for this threshold.
+	 * 
+	 * @param roi - The Mat-Object representing ROI
+	 * @return The contours, the threshold and the number of useful objects
+	 */
+	
+	public static ThresholdSweepResult findContoursByComponentTree(Mat roi) {
+		Mat matGray = toBlurredGrayImage(roi);
+		int[] usefulObjects = ComponentTreeEngine.countUsefulObjects(matGray);
+		
+		int bestThreshold = 100;
+		for (int threshold = 100; threshold <= 160; threshold += 2) {
+			if (usefulObjects[threshold] >= usefulObjects[bestThreshold]) {
+				bestThreshold = threshold;
+			}
+		}
+		
+		ThresholdSweepResult result = findContoursForThreshold(matGray, bestThreshold);
+		matGray.deallocate();
+		return result;
+	}
+	
+	/**
+	 * Same as findContoursWithMostObjects(roi), but the thresholds are processed by the given number
+	 * of threads. The best threshold is selected afterwards in ascending order of the thresholds,
+	 * so the result does not depend on the number of threads.
+	 * 
+	 * @param roi - The Mat-Object representing ROI
+	 * @param threads - Number of threads, 1 processes all thresholds in the calling thread
+	 * @return The contours, the threshold and the number of useful objects
+	 */
+	
+	public static ThresholdSweepResult findContoursWithMostObjects(Mat roi, int threads) {
+		Mat matGray = toBlurredGrayImage(roi);
+		
+		List<ThresholdSweepResult> results = new ArrayList<>();
+		if (threads <= 1) {
+			for (int threshold = 100; threshold <= 160; threshold += 2) {
+				results.add(findContoursForThreshold(matGray, threshold));
+			}
+		} else {
+			List<Callable<ThresholdSweepResult>> tasks = new ArrayList<>();
+			for (int threshold = 100; threshold <= 160; threshold += 2) {
+				int currentThreshold = threshold;
+				tasks.add(() -> {
+					// One OpenCV thread per sweep thread, the threads of the sweep already use all cores
+					setNumThreads(1);
+					return findContoursForThreshold(matGray, currentThreshold);
+				});
+			}
+			try {
+				for (Future<ThresholdSweepResult> future : ThresholdSweepExecutor.getExecutor(threads).invokeAll(tasks)) {
+					results.add(future.get());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Threshold sweep was interrupted.", e);
+			} catch (ExecutionException e) {
+				throw new IllegalStateException("Threshold sweep failed.", e.getCause());
+			}
+		}
+		matGray.deallocate();
+		
+		//Save best result - with the most objects, after filtering useless objects
+		ThresholdSweepResult bestResult = null;
+		for (ThresholdSweepResult result : results) {
+			//Store always best solution (so far)
+			if (bestResult == null || result.getObjectCnt() >= bestResult.getObjectCnt()) {
+				if (bestResult != null) {
+					bestResult.getContours().deallocate();
+				}
+				bestResult = result;
+			} else {
+				result.getContours().deallocate();
+			}
+		}
+		return bestResult;
+	}
+	
+	/**
+	 * Thresholds the gray scale image, finds the contours and counts the useful objects.
+	 */
+	
+	private static ThresholdSweepResult findContoursForThreshold(Mat matGray, int threshold) {
+		Mat binaryMat = MatPool.acquire(matGray.rows(), matGray.cols(), matGray.type());
+		threshold(matGray, binaryMat, threshold, 255, THRESH_BINARY);
+		MatVector contours = new MatVector();
+		Mat hierarchy = new Mat();
+		findContours(binaryMat, contours, hierarchy, RETR_LIST, CHAIN_APPROX_SIMPLE);
+		hierarchy.deallocate();
+		MatPool.release(binaryMat);
+		
+		return new ThresholdSweepResult(contours, threshold, countUsefulObjects(contours));
+	}
+	
+	/**
+	 * Counts the contours with an area in range of ANALYSIS_OBJECT_MINIMUM_AREA and ANALYSIS_OBJECT_MAXIMUM_AREA.
+	 */
+	
+	private static int countUsefulObjects(MatVector contours) {
+		int filteredObjects = 0;
+		for (int idx = 0; idx < contours.size(); idx++) {
+			double areaSize = contourArea(contours.get(idx));
+            if (areaSize < Constants.ANALYSIS_OBJECT_MINIMUM_AREA || areaSize > Constants.ANALYSIS_OBJECT_MAXIMUM_AREA) {
+            	filteredObjects++;
+            }
+		}
+		return (int)contours.size() - filteredObjects;
+	}
+	
 	/**
 	 * This method takes a color image and returns a subimage, which represents 
 	 * the ROI. This procedure is based on the following steps: Create gray 
 	 * image, create a binary image, apply the canny86 algorithm, find contours 
 	 * of objects and takes the largest image as the ROI.
 	 * 
+	 * The search runs on an image downscaled by Constants.ROI_PYRAMID_LEVELS.
+	 * 
 	 * @param matColor - A color picture.
 	 * @return the subimage representing the ROI. 
 	 */
 	
-	@SuppressWarnings("resource")
 	public static ROIResult extractROI(Mat matColor) {
+		return extractROI(matColor, Constants.ROI_PYRAMID_LEVELS);
+	}
+	
+	/**
+	 * Same as extractROI(matColor), but the search for the largest contour runs on an image, which is
+	 * downscaled by the given number of pyramid levels (each level halves the width and height). The
+	 * sizes of the blur and morphology kernels are reduced accordingly. The bounding rectangle is
+	 * mapped back to the full resolution, the ROI is cut from the full resolution image.
+	 * 
+	 * @param matColor - A color picture.
+	 * @param pyramidLevels - Number of pyramid levels, 0 for a search in full resolution
+	 * @return the subimage representing the ROI. In case of a downscaled search the binary image is downscaled as well.
+	 */
+	
+	@SuppressWarnings("resource")
+	public static ROIResult extractROI(Mat matColor, int pyramidLevels) {
+		Mat searchMat = matColor;
+		for (int level = 0; level < pyramidLevels; level++) {
+			Mat downscaled = new Mat();
+			pyrDown(searchMat, downscaled);
+			if (searchMat != matColor) {
+				searchMat.deallocate();
+			}
+			searchMat = downscaled;
+		}
+		int scale = 1 << Math.max(0, pyramidLevels);
+		
 		Mat matGray = new Mat();
-		cvtColor(matColor, matGray, COLOR_BGR2GRAY);
+		cvtColor(searchMat, matGray, COLOR_BGR2GRAY);
+		if (searchMat != matColor) {
+			searchMat.deallocate();
+		}
 		
-		GaussianBlur(matGray, matGray, new Size(11, 11), 0);
-		int bestThreshold = Logic.findBestThresholdForROI(matGray);
+		int blurSize = Math.max(3, (11 / scale) | 1);
+		GaussianBlur(matGray, matGray, new Size(blurSize, blurSize), 0);
+		int bestThreshold = HistogramThresholdEngine.findBestThreshold(matGray);
 		Mat binaryMat = new Mat();
 		threshold(matGray, binaryMat, bestThreshold, 255, THRESH_BINARY);
 		
@@ -160,7 +332,8 @@ public class Logic {
 		Mat cannyMat = new Mat();
 		Canny(binaryMat, cannyMat, bestThreshold, bestThreshold * 2);
 
-		Mat kernel = getStructuringElement(MORPH_ELLIPSE, new Size(5, 5));
+		int kernelSize = Math.max(3, (5 / scale) | 1);
+		Mat kernel = getStructuringElement(MORPH_ELLIPSE, new Size(kernelSize, kernelSize));
 		for (int i = 0; i < 10; i++ ) {
 			dilate(cannyMat, cannyMat, kernel);
 			erode(cannyMat, cannyMat, kernel);
@@ -175,11 +348,18 @@ public class Logic {
 		
 		// Crop everything around ROI, the result is an image representing the ROI
 		Rect rect = boundingRect(largestROI);
+		if (scale > 1) {
+			// Map back to full resolution
+			int x = Math.min(rect.x() * scale, matColor.cols() - 1);
+			int y = Math.min(rect.y() * scale, matColor.rows() - 1);
+			rect = new Rect(x, y, Math.min(rect.width() * scale, matColor.cols() - x), Math.min(rect.height() * scale, matColor.rows() - y));
+		}
 		int extention = Constants.ROI_SIDE_EXTENSION;
 		
 		// Extract a little bit more, then the roi to prevent cut objects
 		Rect largerRect = new Rect(new Point(rect.tl().x() - extention, rect.tl().y() - extention), new Point(rect.br().x() + extention, rect.br().y() + extention));
 		Mat roi = new Mat();
+		Rect roiRect = largerRect;
 		
 		try {
 			// Try to extract larger Rect
@@ -188,6 +368,7 @@ public class Logic {
 			// If this does not work, take original rect
 			log.info("Could not extract larger rect. Took original rectangle");
 			roi = new Mat(matColor, rect);
+			roiRect = rect;
 		}
 		
 		boolean tookCompleteImage = false;
@@ -195,14 +376,16 @@ public class Logic {
 		if (roi.size().width() < 400 || roi.size().height() < 300) {
 			roi.deallocate();
 			roi = new Mat(matColor);
+			roiRect = new Rect(0, 0, matColor.cols(), matColor.rows());
 			tookCompleteImage = true;
 		}
 		
 		matGray.deallocate();
 		cannyMat.deallocate();
+		hierarchy.deallocate();
 		contours.deallocate();
 		
-		return new ROIResult(roi, binaryMat, tookCompleteImage);
+		return new ROIResult(roi, binaryMat, tookCompleteImage, roiRect);
 	}
 	
 	/**
@@ -223,59 +406,55 @@ public class Logic {
 		
 		// *************** LOCALIZATION ****************
 		
-		//Save best result - with the most objects, after filtering useless objects
-		int foundMostObjects = 0;
-		MatVector bestContours = null;
-		int bestThreshold = 0;
+		ThresholdSweepResult sweepResult = findContoursWithMostObjects(roi);
+		MatVector bestContours = sweepResult.getContours();
+		odr.setContours(bestContours);
+		log.info("Found most useful objects ({}) at threshold {}", sweepResult.getObjectCnt(), sweepResult.getBestThreshold());
 		
 		int filteredObjects = 0;
-		
-		for (int threshold = 100; threshold <= 160; threshold += 2) {
-		    BinaryResult binaryResult = Logic.toBinaryImage(roi, threshold);
-			MatVector contours = new MatVector();
-			Mat hierarchy = new Mat();
-			findContours(binaryResult.getBinaryImage(), contours, hierarchy, RETR_LIST, CHAIN_APPROX_SIMPLE);
-
-			for (int idx = 0; idx < contours.size(); idx++) {
-				double areaSize = contourArea(contours.get(idx));
-	            if (areaSize < Constants.ANALYSIS_OBJECT_MINIMUM_AREA || areaSize > Constants.ANALYSIS_OBJECT_MAXIMUM_AREA) {
-	            	filteredObjects++;
-	            }
-			}
-			
-			//Count useful objects - store always best solution (so far)
-			if ((contours.size() - filteredObjects) >= foundMostObjects) {
-				bestContours = contours;
-				foundMostObjects =  (int)contours.size() - filteredObjects;
-				bestThreshold = threshold;
-			}
-			filteredObjects = 0;
-		}
-		odr.setContours(bestContours);
-		log.info("Found most useful objects ({}) at threshold {}", foundMostObjects, bestThreshold);
+		SurfaceStatistics surfaceStatistics = Constants.CLASSIFICATION_SURFACE_MODE == SurfaceMode.INTEGRAL_STATISTICS ? new SurfaceStatistics(roi) : null;
 		
 
 		// *************** CALCULATIONS FOR OBJECT ATTRIBUTES ****************
+		// The features are calculated in the order of the filters: Cheap features first, the expensive
+		// ones just for objects, which passed all filters.
 		List<DetectedObject> objects = new ArrayList<>();
         for (int i = 0; i < bestContours.size(); i++) {
         	Mat contour = bestContours.get(i);
+        	
+            //Calculate AreaSize
+            double areaSize = contourArea(contour);
+            
+            // *************** FILTERING ****************
+            
+            //Filter objects, which are obviously too small
+            if (areaSize < Constants.ANALYSIS_OBJECT_MINIMUM_AREA || areaSize > Constants.ANALYSIS_OBJECT_MAXIMUM_AREA) {
+            	filteredObjects++;
+            	continue;
+            }
+            
             Mat points = new Mat();
             approxPolyDP(contour, points, arcLength(contour, true) * 0.02, true);
-             
+            
+            //Calculate BoundingBox
+            Rect boundingBox = boundingRect(points);
+            
+            if (isFilteredByBoundingBox(boundingBox, roi)) {
+            	points.deallocate();
+            	filteredObjects++;
+            	continue;
+            }
+            
+            // *************** CALCULATIONS FOR REMAINING OBJECTS ****************
+            
             //Calculate minEclosingCircle + radius + centerPoint
             Point2f point2f = new Point2f();
             float[] radius = new float[1];
-            minEnclosingCircle(bestContours.get(i), point2f, radius);
-            
-            //Calculate AreaSize
-            double areaSize = contourArea(contour);
+            minEnclosingCircle(contour, point2f, radius);
            
             //Calculate convexHull
             Mat convexHull = calculateConvexHull(contour);
             
-            //Calculate BoundingBox
-            Rect boundingBox = boundingRect(points);
-            
             //Calculate minAreaRect
             RotatedRect minAreaRect = minAreaRect(convexHull);
             
@@ -289,59 +468,15 @@ public class Logic {
             double maxSide = getMaxSide(minAreaRect);
             
             //Determine Colors on Surface
-            //Example found at http://bytedeco.org/news/2014/12/23/third-release/
-            Mat convexHullImg = new Mat(roi, boundingBox);
-            UByteRawIndexer rgbaIdx = convexHullImg.createIndexer();
-            int stepX = Math.max(1, (convexHullImg.size().width() / 10));
-            int stepY = Math.max(1, (convexHullImg.size().height() / 10));
-            Colors colors = new Colors();
-            //Iterate left to right - line
-            for (int x = 0; x < convexHullImg.size().width(); x = x + stepX) {
-            	int y = convexHullImg.size().height() / 2;
-            	float b = rgbaIdx.get(y, x, 2);
-                float g = rgbaIdx.get(y, x, 1);
-                float r = rgbaIdx.get(y, x, 0);
-                colors.add(new Color(r, g, b));
-            }
-            
-            //Iterate top to bottom - line 
-        	for (int y = 0; y < convexHullImg.size().height(); y = y + stepY) {
-        		int x = convexHullImg.size().width() / 2;
-        		float b = rgbaIdx.get(y, x, 2);
-                float g = rgbaIdx.get(y, x, 1);
-                float r = rgbaIdx.get(y, x, 0);
-                colors.add(new Color(r, g, b));
-            }
-        	convexHullImg.close();
-        	rgbaIdx.close();
-        	
-            // *************** FILTERING ****************
-            
-            //Filter objects, which are obviously too small
-            if (areaSize < Constants.ANALYSIS_OBJECT_MINIMUM_AREA || areaSize > Constants.ANALYSIS_OBJECT_MAXIMUM_AREA) {
-            	filteredObjects++;
-            	continue;
-            }
-            
-            //Filter objects, which are obviously too large
-            //Here we define, that each object, which has a width or height > (1/s of roi.height/width) is too large
-            if (boundingBox.width() > (Constants.ANALYSIS_ROI_RELATION_SIZE * roi.cols()) || boundingBox.height() > (Constants.ANALYSIS_ROI_RELATION_SIZE * roi.rows())) {
-            	filteredObjects++;
-            	continue;
-            }
-            
-            //Filter objects, which are very long rectangle, which may appear at the sides of the ROI.
-            //Here we define, that each object, which has a width or height < x px and the other side must be at least x times larger
-            if (boundingBox.width() < Constants.ANALYSIS_FILTER_MINSIZE && (boundingBox.height() >= Constants.ANALYSIS_FILTER_SIDEFACTOR * boundingBox.width()) || 
-            		boundingBox.height() < Constants.ANALYSIS_FILTER_MINSIZE && (boundingBox.width() >= Constants.ANALYSIS_FILTER_SIDEFACTOR * boundingBox.height())) {
-            	filteredObjects++;
-            	continue;
-            }
+            Colors colors = SurfaceColorSampler.get().sample(roi, boundingBox);
             
-            //we eliminate all objects detected at all 4 sides.
-            if (boundingBox.y() < 100 || boundingBox.y() > roi.size().height() - 100 || boundingBox.x() < 100 || boundingBox.x() > roi.size().width() - 100) {
-            	filteredObjects++;
-            	continue;
+            //Determine color statistics inside the bounding box of the convex hull
+            double[] surfaceMean = null;
+            double[] surfaceStdDev = null;
+            if (surfaceStatistics != null) {
+            	Rect hullBox = boundingRect(convexHull);
+            	surfaceMean = surfaceStatistics.getMean(hullBox);
+            	surfaceStdDev = surfaceStatistics.getStdDev(hullBox);
             }
             
             // ************ COLLECTING AND STORING RESULTS **********
@@ -351,6 +486,8 @@ public class Logic {
             detObj.setRedDiff(colors.getRedDiff());
             detObj.setBlueDiff(colors.getBlueDiff());
             detObj.setGreenDiff(colors.getGreenDiff());
+            detObj.setSurfaceMean(surfaceMean);
+            detObj.setSurfaceStdDev(surfaceStdDev);
             detObj.setContours(contour);
             detObj.setConvexHull(convexHull);
             detObj.setBoundingBox(boundingBox);
@@ -367,144 +504,106 @@ public class Logic {
             
             objects.add(detObj);
         }
+        if (surfaceStatistics != null) {
+        	surfaceStatistics.close();
+        }
         log.info("Filtered objects (based on size conditions): {}", filteredObjects);
         
-		//We know, that there are maximal 15 objects: Eliminate always smallest -> we expect, that small objects are distractors
-        int eliminatedCnt = 0;
-        while (objects.size() > 15) {
-        	double smallestAreaSize = getSmallestAreaSize(objects);
-        	objects.removeIf(o -> o.getAreaSize() == smallestAreaSize);
-        	
-        	eliminatedCnt++;
-        }
-        log.info("Eliminated objects (because we found too many): {}", eliminatedCnt);
+		//We know, that there are maximal GENERAL_MAX_OBJECTS objects: Keep the largest ones -> we expect, that small objects are distractors
+        int foundCnt = objects.size();
+        objects = selectLargestObjects(objects, Constants.GENERAL_MAX_OBJECTS);
+        log.info("Eliminated objects (because we found too many): {}", foundCnt - objects.size());
 
         // ************ CALCULATING FOR GENERAL FEATURES **********
         
         //Distinguish between outer and inner objects
-        objects = detectRelationsOfObjects(objects);
+        ContainmentGraph containmentGraph = new ContainmentGraph(objects);
+        objects = detectRelationsOfObjects(objects, containmentGraph);
         
         //Calculate average of expected bottle cap side length
-        BottleCapSizeResult bcsr = calculateExpectedBottleCapSize(objects, Constants.ANALYSIS_SLIDING_WINDOW_SIZE);
+        BottleCapSizeResult bcsr = BottleCapSizeEstimator.estimate(objects, Constants.ANALYSIS_SLIDING_WINDOW_SIZE);
         odr.setExpectedBottleCapSize(bcsr.getAvgSize());
         
         //Perform classification
-        objects = classifyObjects(objects, Constants.ANALYSIS_SLIDING_WINDOW_SIZE, (int)bcsr.getAvgSize());
+        objects = classifyObjects(objects, containmentGraph, Constants.ANALYSIS_SLIDING_WINDOW_SIZE, (int)bcsr.getAvgSize());
 
         odr.setObjects(objects);
         return odr;
 	}
 	
-	private static double getSmallestAreaSize(List<DetectedObject> objects) {
-		double areasize = Double.MAX_VALUE;
-		for (DetectedObject detObj : objects) {
-			if (detObj.getAreaSize() < areasize) {
-				areasize = detObj.getAreaSize();
-			}
-		}
-		return areasize;
+	/**
+	 * Checks the filters based on the bounding box of an object: Objects, which are too large,
+	 * very long rectangles and objects at the sides of the ROI are filtered.
+	 * 
+	 * @param boundingBox - The bounding box of the approximated polygon of the object
+	 * @param roi - The Mat-Object representing ROI
+	 * @return true, if the object is filtered
+	 */
+	
+	private static boolean isFilteredByBoundingBox(Rect boundingBox, Mat roi) {
+        //Filter objects, which are obviously too large
+        //Here we define, that each object, which has a width or height > (1/s of roi.height/width) is too large
+        if (boundingBox.width() > (Constants.ANALYSIS_ROI_RELATION_SIZE * roi.cols()) || boundingBox.height() > (Constants.ANALYSIS_ROI_RELATION_SIZE * roi.rows())) {
+        	return true;
+        }
+        
+        //Filter objects, which are very long rectangle, which may appear at the sides of the ROI.
+        //Here we define, that each object, which has a width or height < x px and the other side must be at least x times larger
+        if (boundingBox.width() < Constants.ANALYSIS_FILTER_MINSIZE && (boundingBox.height() >= Constants.ANALYSIS_FILTER_SIDEFACTOR * boundingBox.width()) || 
+        		boundingBox.height() < Constants.ANALYSIS_FILTER_MINSIZE && (boundingBox.width() >= Constants.ANALYSIS_FILTER_SIDEFACTOR * boundingBox.height())) {
+        	return true;
+        }
+        
+        //we eliminate all objects detected at all 4 sides.
+        return boundingBox.y() < 100 || boundingBox.y() > roi.size().height() - 100 || boundingBox.x() < 100 || boundingBox.x() > roi.size().width() - 100;
 	}
 	
 	/**
-	 * Here, the expected bottle cap length is calculated. Therefore we iterate over all objects
-	 * in the given list of objects, create a sliding window of size s in [px] and move this window along 
-	 * all objects max side lengths.
-	 * For each window position - defined from minPos until maxPos with center c - we determine
-	 * all objects, which's max side is in this range and calculate a weighted and squared point value for 
-	 * this window.
-	 * 
-	 * Be l_1 to l_n the list l of objects in this range, then a point value p is defined as:
-	 * 
-	 * c = minPos + 0.5 * windowSize
-	 * p = sum_{i=1}^{n} Math.pow(Math.abs(c - l_i.maxSide), 2)
+	 * Keeps the maxObjects objects with the largest area sizes, so exactly maxObjects objects are left
+	 * of a larger list. Of objects with the same area size the ones found first are kept.
 	 * 
-	 * where i is in {1, ..., n} of the current list of objects in this range and which must 
-	 * be a separate object.
+	 * The kept objects are determined by a bounded min-heap of their indices, ordered by area size and then
+	 * by index. They are returned in their original order. Convex hull and polygon of eliminated objects are
+	 * freed, their contours are views of the contour vector and are freed together with it.
 	 * 
-	 * Example: s=18px, minPos=50px and current objects (sorted by their maxSides) are 
-	 * L = {51, 62, 73, 84} then we have a current sliding windows from minPos=50 until 
-	 * maxPos = minPos + c = 68 and a center of c = minPos + 0.5 * windowSize = 50 + 0.5 * 18 = 59. 
-	 * Then list of objects l in this range contains the maximal sides of {51, 62}.
-	 * 
-	 * p = sum_{i=1}^{2} (c - l_i)^2 = (59-51)^2 + (59-62)^2 = 64 + 9 = 73.
-	 * 
-	 * While moving this window, we store just the global minimum value p and calculate
-	 * the average max side length of all objects l_i in l.
-	 * 
-	 * The global assumption here is, the most of all objects are bottle caps (it does not matter
-	 * if they are faceUp, faceDown or Deformed).
-	 * 
-	 * @author Alexander Buechel
 	 * @param objects - The list of objects
-	 * @return the calculates expected max length of a bottle cap
+	 * @param maxObjects - Max. number of objects to keep, at least 1
+	 * @return A list with the kept objects
 	 */
 	
-	private static BottleCapSizeResult calculateExpectedBottleCapSize(List<DetectedObject> objects, int windowSize) {
-		int minValueOfRange = (int)Collections.min(objects, Comparator.comparing(x -> x.getMaxSideLength())).getMaxSideLength();
-		int maxValueOfRange = (int)Collections.max(objects, Comparator.comparing(x -> x.getMaxSideLength())).getMaxSideLength();
-
-		//Store best optValue while iterating
-		double bestOptValue = Double.MAX_VALUE; // Best value = Minimum value; therefore we begin with a large value
-		int mostObjectCount = 0;
-		double avgSide = 0.0;
-		int bestPos = minValueOfRange;
-
-		// Iterate over range [left...center...right] with sliding window
-		for (int pos = minValueOfRange; pos <= maxValueOfRange; pos++) {
-			int l = pos;
-			int c = (int)(pos + 0.5 * windowSize);
-			int r = pos + windowSize;
-
-			MaxSidesObjects wo = extractObjectsBasedOnMaxSides(objects, l, r);
-			List<Integer> maxSidesOfCoveredObjects = wo.getMaxSidesList();
-
-			double optValue = 0.0;
-			for (Integer i : maxSidesOfCoveredObjects) {
-				optValue += Math.pow(Math.abs(c - i), 2);
-			}
-			optValue = optValue / maxSidesOfCoveredObjects.size();
-
-			// Store current best solution
-			// Store new best result, if (1) we found more objects or (2) the same number, but better optimization value
-			// This procedure includes a weighting based of outer objects
-			if ((maxSidesOfCoveredObjects.size() + wo.getNrOfOuterObjects() > mostObjectCount) || (maxSidesOfCoveredObjects.size() + wo.getNrOfOuterObjects() == mostObjectCount && optValue <= bestOptValue)) {
-				bestOptValue = optValue;
-				bestPos = pos;
-				mostObjectCount = maxSidesOfCoveredObjects.size() + wo.getNrOfOuterObjects();
-				avgSide = 0.0;
-				for (Integer i : maxSidesOfCoveredObjects) {
-					avgSide += i;
-				}
-				avgSide = avgSide / maxSidesOfCoveredObjects.size();
+	public static List<DetectedObject> selectLargestObjects(List<DetectedObject> objects, int maxObjects) {
+		if (maxObjects < 1) {
+			throw new IllegalArgumentException("Expected at least 1 object to keep, but got " + maxObjects);
+		}
+		if (objects.size() <= maxObjects) {
+			return objects;
+		}
+		// The head of the heap is the smallest kept object: the smallest area size, the largest index on equal area sizes
+		Comparator<Integer> byAreaSize = (i1, i2) -> {
+			int cmp = Double.compare(objects.get(i1).getAreaSize(), objects.get(i2).getAreaSize());
+			return cmp != 0 ? cmp : Integer.compare(i2, i1);
+		};
+		PriorityQueue<Integer> largestIndices = new PriorityQueue<>(maxObjects + 1, byAreaSize);
+		for (int i = 0; i < objects.size(); i++) {
+			largestIndices.add(i);
+			if (largestIndices.size() > maxObjects) {
+				largestIndices.poll();
 			}
-			
 		}
-		log.info("Return as expected bottle cap size in [px]: {} based on optimization problem value = {} with {} objects", avgSide, bestOptValue, mostObjectCount);
-		return new BottleCapSizeResult(avgSide, bestPos);
-	}
-	
-	/**
-	 * This method extracts a subgroup of objects from all objects, which are covered by the sliding window.
-	 * Furthermore it determine those objects, which has inner objects, because they are a strong argument for
-	 * being a bottlecap - the inner ring of the cap is often determined as well.
-	 * 
-	 * @param objects All objects
-	 * @param minRange left value of the range
-	 * @param maxRange right value of the range
-	 * @return A WeightedObjects objects
-	 */
-	private static MaxSidesObjects extractObjectsBasedOnMaxSides(List<DetectedObject> objects, int minRange, int maxRange) {
-		List<Integer> maxSides = new ArrayList<>();
-		int nrOfweightedObjects = 0;
-		for (DetectedObject dob : objects) {
-			if (dob.getMaxSideLength() >= minRange && dob.getMaxSideLength() <= maxRange) {
-				maxSides.add((int)dob.getMaxSideLength());
-				if (dob.isInnerObject() && dob.isCircle()) {
-					nrOfweightedObjects++;
-				}
+		boolean[] isKept = new boolean[objects.size()];
+		for (int i : largestIndices) {
+			isKept[i] = true;
+		}
+		
+		List<DetectedObject> largestObjects = new ArrayList<>(maxObjects);
+		for (int i = 0; i < objects.size(); i++) {
+			if (isKept[i]) {
+				largestObjects.add(objects.get(i));
+			} else {
+				objects.get(i).releaseMats();
 			}
 		}
-		return new MaxSidesObjects(maxSides, nrOfweightedObjects);
+		return largestObjects;
 	}
 	
 	/**
@@ -571,27 +670,28 @@ public class Logic {
 		return false;
 	}
 	
-	private static List<DetectedObject> detectRelationsOfObjects(List<DetectedObject> objects) {
-		int relationCount = 0;
-		for (int i = 0; i < objects.size(); i++) { // DetectedObject o : objects
+	/**
+	 * Marks the inner and outer objects and connects each child with its parent.
+	 * 
+	 * @param objects - The list of objects
+	 * @param containmentGraph - The inner/outer relations of the list of objects
+	 * @return The same list, containing set attributes for the relations
+	 */
+	
+	private static List<DetectedObject> detectRelationsOfObjects(List<DetectedObject> objects, ContainmentGraph containmentGraph) {
+		for (int i = 0; i < objects.size(); i++) {
 			DetectedObject o = objects.get(i);
-			for (int j = 0; j < objects.size(); j++) { // DetectedObject j : objects
+			for (int j : containmentGraph.getParents(i)) {
 				DetectedObject o2 = objects.get(j);
-				if (!o.equals(o2)) {
-					if (o2.rectIsInObject(o.getBoundingBox(), o.getAreaSize())) {
-						
-						objects.get(i).setInnerObject(true);
-						objects.get(i).setOuterForeignId(o2.getId());	//Connect the parent and the child object.
-						
-						objects.get(j).setOuterObject(true);
-						objects.get(j).setInnerForeignId(o.getId());	//Connect the parent and the child object.
-						
-						relationCount++;
-					}
-				}
+				
+				o.setInnerObject(true);
+				o.setOuterForeignId(o2.getId());	//Connect the parent and the child object.
+				
+				o2.setOuterObject(true);
+				o2.setInnerForeignId(o.getId());	//Connect the parent and the child object.
 			}
 		}
-		log.debug("Detected inner/outer relations: {}", relationCount);
+		log.debug("Detected inner/outer relations: {}", containmentGraph.getRelationCnt());
 		return objects;
 	}
 	
@@ -600,10 +700,11 @@ public class Logic {
 	 * 
 	 * @see bottlecapdetection.model.ClassificationType
 	 * @param detectedObjects - The list of objects
+	 * @param containmentGraph - The inner/outer relations of the list of objects
 	 * @return The same list, containing set attributes for the Classification
 	 */
 	
-	private static List<DetectedObject> classifyObjects(List<DetectedObject> detectedObjects, int windowSize, int avgSize) {
+	private static List<DetectedObject> classifyObjects(List<DetectedObject> detectedObjects, ContainmentGraph containmentGraph, int windowSize, int avgSize) {
 		for (DetectedObject detObj : detectedObjects) {
 			if (isCoveredByExtendedWindow(detObj, windowSize, avgSize)) {
 				if (detObj.isCircle()) {
@@ -624,16 +725,11 @@ public class Logic {
 		}
 		
 		//Eliminate inner objects with (deformed) BottleCap-Type if outer object is BottleCap as well
-		for (int i = 0; i < detectedObjects.size(); i++) { // DetectedObject o : objects
-			DetectedObject o = detectedObjects.get(i);
-			for (int j = 0; j < detectedObjects.size(); j++) { // DetectedObject j : objects
+		for (int i = 0; i < detectedObjects.size(); i++) {
+			for (int j : containmentGraph.getParents(i)) {
 				DetectedObject o2 = detectedObjects.get(j);
-				if (!o.equals(o2)) {
-					if (o2.rectIsInObject(o.getBoundingBox(), o.getAreaSize())) {
-						if (o2.getType() == ClassificationType.BOTTLECAP || o2.getType() == ClassificationType.BOTTLECAP_DEFORMED) {
-							detectedObjects.get(i).setType(ClassificationType.INNER_OBJECT);
-						}
-					}
+				if (o2.getType() == ClassificationType.BOTTLECAP || o2.getType() == ClassificationType.BOTTLECAP_DEFORMED) {
+					detectedObjects.get(i).setType(ClassificationType.INNER_OBJECT);
 				}
 			}
 		}
@@ -641,14 +737,9 @@ public class Logic {
 		//Eliminate outer objects with Distractor-Type if inner object is BottleCap
 		for (int i = 0; i < detectedObjects.size(); i++) {
 			DetectedObject o = detectedObjects.get(i);
-			for (int j = 0; j < detectedObjects.size(); j++) {
-				DetectedObject o2 = detectedObjects.get(j);
-				if (!o.equals(o2)) {
-					if (o2.rectIsInObject(o.getBoundingBox(), o.getAreaSize())) {
-						if (o.getType() == ClassificationType.BOTTLECAP) {
-							detectedObjects.get(j).setType(ClassificationType.IGNORED_OBJECT);
-						}
-					}
+			for (int j : containmentGraph.getParents(i)) {
+				if (o.getType() == ClassificationType.BOTTLECAP) {
+					detectedObjects.get(j).setType(ClassificationType.IGNORED_OBJECT);
 				}
 			}
 		}
@@ -656,14 +747,10 @@ public class Logic {
 		//Eliminate inner object if outer and inner are distractors
 		for (int i = 0; i < detectedObjects.size(); i++) {
 			DetectedObject o = detectedObjects.get(i);
-			for (int j = 0; j < detectedObjects.size(); j++) {
+			for (int j : containmentGraph.getParents(i)) {
 				DetectedObject o2 = detectedObjects.get(j);
-				if (!o.equals(o2)) {
-					if (o2.rectIsInObject(o.getBoundingBox(), o.getAreaSize())) {
-						if (o.getType() == ClassificationType.DISTRACTOR && o2.getType() == ClassificationType.DISTRACTOR) {
-							detectedObjects.get(i).setType(ClassificationType.IGNORED_OBJECT);
-						}
-					}
+				if (o.getType() == ClassificationType.DISTRACTOR && o2.getType() == ClassificationType.DISTRACTOR) {
+					o.setType(ClassificationType.IGNORED_OBJECT);
 				}
 			}
 		}
@@ -671,7 +758,8 @@ public class Logic {
 		//Decide between Up and Down BottleCaps
 		for (DetectedObject detObj : detectedObjects) {
 			if (detObj.getType() == ClassificationType.BOTTLECAP) {
-				if (detObj.hasUniStructuredSurface()) {
+				boolean uniformSurface = Constants.CLASSIFICATION_SURFACE_MODE == SurfaceMode.INTEGRAL_STATISTICS ? detObj.hasLowSurfaceVariance() : detObj.hasUniStructuredSurface();
+				if (uniformSurface) {
 					detObj.setType(ClassificationType.BOTTLECAP_DOWN);
 				} else {
 					detObj.setType(ClassificationType.BOTTLECAP_UP);
@@ -0,0 +1,126 @@
+package bottlecapdetection.logic;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+
+import bottlecapdetection.Constants;
+
+/**
+ * This class offers a pool of native Mat buffers.
+ *
+ * Decoding a video needs one buffer of the same size and type for each frame. Instead of allocating
+ * and freeing a native buffer per frame, the buffers are released back into this pool and handed out
+ * again for the next frames. The pool is shared by all jobs and holds at most Constants.MATPOOL_MAX_BYTES,
+ * so its footprint stays flat over many videos. Mats released into a full pool are freed.
+ *
+ * A released Mat must not be used anymore by the caller. The pooled Mats are owned by the pool, so they are
+ * retained in case they are created or released inside of a NativeMemoryScope.
+ *
+ * @author Alexander Buechel
+ *
+ */
+
+public class MatPool {
+
+	private static final Map<String, ArrayDeque<Mat>> freeMats = new HashMap<>();
+	private static long pooledBytes = 0;
+
+	private static long allocatedCnt = 0;
+	private static long reusedCnt = 0;
+
+	/**
+	 * Returns a Mat with the given size and type. Its content is undefined.
+	 *
+	 * @param rows - Number of rows
+	 * @param cols - Number of columns
+	 * @param type - OpenCV type, e.g. CV_8UC3
+	 * @return A pooled or a newly allocated Mat
+	 */
+
+	public static synchronized Mat acquire(int rows, int cols, int type) {
+		ArrayDeque<Mat> mats = freeMats.get(getKey(rows, cols, type));
+		if (mats != null && !mats.isEmpty()) {
+			Mat mat = mats.pop();
+			pooledBytes -= getBytes(mat);
+			reusedCnt++;
+			return mat;
+		}
+		allocatedCnt++;
+		return NativeMemoryScope.retainInCurrentScope(new Mat(rows, cols, type));
+	}
+
+	/**
+	 * Returns a copy of the given Mat in a pooled buffer.
+	 *
+	 * @param src - The Mat to copy
+	 * @return The copy
+	 */
+
+	public static Mat copyOf(Mat src) {
+		Mat dst = acquire(src.rows(), src.cols(), src.type());
+		src.copyTo(dst);
+		return dst;
+	}
+
+	/**
+	 * Gives a Mat back to the pool. If the pool is full or the Mat does not own a continuous buffer,
+	 * the Mat is freed.
+	 *
+	 * @param mat - The Mat, which is not used anymore. May be null.
+	 */
+
+	public static synchronized void release(Mat mat) {
+		if (mat == null || mat.isNull()) {
+			return;
+		}
+		long bytes = getBytes(mat);
+		if (mat.empty() || !mat.isContinuous() || pooledBytes + bytes > Constants.MATPOOL_MAX_BYTES) {
+			mat.deallocate();
+			return;
+		}
+		ArrayDeque<Mat> mats = freeMats.computeIfAbsent(getKey(mat.rows(), mat.cols(), mat.type()), k -> new ArrayDeque<>());
+		if (mats.contains(mat)) {
+			return; // released twice
+		}
+		mats.push(NativeMemoryScope.retainInCurrentScope(mat));
+		pooledBytes += bytes;
+	}
+
+	/**
+	 * Frees all pooled Mats.
+	 */
+
+	public static synchronized void clear() {
+		for (ArrayDeque<Mat> mats : freeMats.values()) {
+			for (Mat mat : mats) {
+				mat.deallocate();
+			}
+		}
+		freeMats.clear();
+		pooledBytes = 0;
+	}
+
+	public static synchronized long getPooledBytes() {
+		return pooledBytes;
+	}
+
+	public static synchronized long getAllocatedCnt() {
+		return allocatedCnt;
+	}
+
+	public static synchronized long getReusedCnt() {
+		return reusedCnt;
+	}
+
+	private static String getKey(int rows, int cols, int type) {
+		return rows + "x" + cols + "/" + type;
+	}
+
+	private static long getBytes(Mat mat) {
+		return mat.total() * mat.elemSize();
+	}
+
+}
@@ -4,15 +4,28 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.bytedeco.javacv.FFmpegFrameGrabber;
 import org.bytedeco.javacv.Frame;
 import org.bytedeco.javacv.OpenCVFrameConverter;
 import org.bytedeco.javacv.FrameGrabber.Exception;
 import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Size;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import bottlecapdetection.Constants;
+import bottlecapdetection.exceptions.MatException;
+import bottlecapdetection.model.StaticSceneMode;
+import bottlecapdetection.model.VideoFrame;
+
+import static org.bytedeco.opencv.global.opencv_core.CV_8UC1;
+import static org.bytedeco.opencv.global.opencv_imgproc.*;
+
 /**
  * This class offers a method to load a mp4 file.
  * 
@@ -23,6 +36,9 @@ import org.slf4j.LoggerFactory;
 public class Mp4FileLoader {
 	
 	private static final Logger log = LoggerFactory.getLogger(Mp4FileLoader.class);
+	
+	// Marks the end of a video stream in the hand-off queue
+	private static final VideoFrame END_OF_STREAM = new VideoFrame(-1, null, null);
 
 	/**
 	 * Loads a mp4 file given by an absolute path. It uses FFmpegFrameGrabber
@@ -30,7 +46,8 @@ public class Mp4FileLoader {
 	 * 
 	 * To prevent memory leak problems, we expect the static scene inside the second or third quarter.
 	 * Therefore - based on the total number of frame - we calculate the indices, we are just interested in
-	 * and just extract those images.
+	 * and just extract those images. The grabber seeks directly to the first index and stops after the
+	 * last index, so the first and the last quarter are not decoded at all.
 	 * 
 	 * @param filePath - The absolute file path to a mp4 file
 	 * @return A list of null entries and a specific range of Mat objects of this mp4 file
@@ -41,32 +58,34 @@ public class Mp4FileLoader {
 		
 		List<Mat> matObjects = new ArrayList<>();
 		
-		File file = new File(filePath);
-		if (!file.exists()) {
-			throw new FileNotFoundException("File not found: " + filePath);
-		}
-		
-		FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(filePath);
+		FFmpegFrameGrabber grabber = startGrabber(filePath);
 		OpenCVFrameConverter.ToMat converterToMat = new OpenCVFrameConverter.ToMat();
-		grabber.start();
 		
 		int totalFrameCnt = grabber.getLengthInFrames();
-		int IdxFirstQuarter = (int)(totalFrameCnt / 4);
-		int IdxThirdQuarter = (int)(totalFrameCnt / 4 * 3);
+		int firstIdx = getFirstIdx(totalFrameCnt);
+		int lastIdx = getLastIdx(totalFrameCnt);
 		
-		Frame frame;
-		int cnt = 1;
+		log.debug("Going to extract images idx {} to {} from video file (total frames: {}).", firstIdx, lastIdx, totalFrameCnt);
 		
-		log.debug("Going to extract images idx {} to {} from video file (total frames: {}).", IdxFirstQuarter, IdxThirdQuarter, grabber.getLengthInFrames());
+		int idx = seekToFrame(grabber, 0, firstIdx);
+		for (int i = 0; i < idx; i++) {
+			matObjects.add(null); // Using null values for reducing storage and avoiding memory problems
+		}
 		
-	    while ((frame = grabber.grabImage()) != null) {
-	    	if (cnt >= IdxFirstQuarter && cnt <= IdxThirdQuarter) {
+		Frame frame;
+	    while (idx <= lastIdx && (frame = grabber.grabImage()) != null) {
+	    	if (idx >= firstIdx) {
 	    		Mat mat = converterToMat.convert(frame);
-		    	matObjects.add(mat.clone());
+		    	matObjects.add(MatPool.copyOf(mat));
 	    	} else {
-	    		matObjects.add(null); // Using null values for reducing storage and avoiding memory problems
+	    		matObjects.add(null);
 	    	}
-	    	cnt++;
+	    	idx++;
+	    }
+	    
+	    // The last quarter is not decoded
+	    while (matObjects.size() < totalFrameCnt) {
+	    	matObjects.add(null);
 	    }
 	    
 	    grabber.stop();
@@ -75,4 +94,336 @@ public class Mp4FileLoader {
 	    return matObjects;
 	}
 	
+	/**
+	 * Streams the second and third quarter of a mp4 file given by an absolute path to a FrameConsumer.
+	 * 
+	 * @see #streamMP4File(String, FrameConsumer, int, int, int)
+	 * @param filePath - The absolute file path to a mp4 file
+	 * @param consumer - The consumer receiving the decoded frames
+	 * @throws Exception - in case of grabFrameExceptions, type: org.bytedeco.javacv.FrameGrabber.Exception
+	 * @throws FileNotFoundException - in case of file was not found
+	 * @throws MatException - in case the consumer rejects the video
+	 */
+	public static void streamMP4File(String filePath, FrameConsumer consumer) throws Exception, FileNotFoundException, MatException {
+		streamMP4File(filePath, consumer, -1, -1, 1);
+	}
+	
+	/**
+	 * Streams a range of a mp4 file given by an absolute path to a FrameConsumer.
+	 * 
+	 * In contrast to loadMP4File, the frames are not collected. A separate decoder thread grabs
+	 * the frames of the given range and hands them over by a bounded queue to the consumer,
+	 * which runs in the calling thread. So decoding and analysis overlap and the number of frames in
+	 * memory is limited by the queue size and by what the consumer keeps.
+	 * 
+	 * The decoder seeks to the first index and stops after the last index. With a stride k > 1 just every
+	 * k-th frame is passed (coarse pass). Frames in between are decoded without conversion, or skipped
+	 * by seeking, if the stride is larger than Constants.DECODE_SEEK_MIN_STRIDE.
+	 * 
+	 * For each passed frame the decoder thread creates the gray scale proxy requested by the consumer.
+	 * The full resolution color frame is just passed, if the consumer needs it. Both are taken from
+	 * the MatPool and should be released back to it by the consumer.
+	 * 
+	 * The consumer may stop the decoding at any time by returning false.
+	 * 
+	 * @param filePath - The absolute file path to a mp4 file
+	 * @param consumer - The consumer receiving the decoded frames
+	 * @param firstIdx - Index of the first frame, -1 for the beginning of the second quarter
+	 * @param lastIdx - Index of the last frame, -1 for the end of the third quarter
+	 * @param stride - Pass every k-th frame
+	 * @throws Exception - in case of grabFrameExceptions, type: org.bytedeco.javacv.FrameGrabber.Exception
+	 * @throws FileNotFoundException - in case of file was not found
+	 * @throws MatException - in case the consumer rejects the video
+	 */
+	public static void streamMP4File(String filePath, FrameConsumer consumer, int firstIdx, int lastIdx, int stride) throws Exception, FileNotFoundException, MatException {
+		
+		FFmpegFrameGrabber grabber = startGrabber(filePath);
+		
+		int totalFrameCnt = grabber.getLengthInFrames();
+		int rangeFirstIdx = firstIdx < 0 ? getFirstIdx(totalFrameCnt) : firstIdx;
+		int rangeLastIdx = lastIdx < 0 ? getLastIdx(totalFrameCnt) : Math.min(lastIdx, totalFrameCnt - 1);
+		int rangeStride = Math.max(1, stride);
+		
+		try {
+			consumer.start(rangeFirstIdx, rangeLastIdx, totalFrameCnt);
+		} catch (MatException e) {
+			grabber.stop();
+			grabber.close();
+			throw e;
+		}
+		
+		log.debug("Going to stream images idx {} to {} with stride {} from video file (total frames: {}).", rangeFirstIdx, rangeLastIdx, rangeStride, totalFrameCnt);
+		
+		int proxyScale = consumer.getProxyScale();
+		boolean colorFrames = consumer.needsColorFrames();
+		
+		BlockingQueue<VideoFrame> queue = new ArrayBlockingQueue<>(Constants.STATICSCENE_STREAM_QUEUE_SIZE);
+		AtomicBoolean stopped = new AtomicBoolean(false);
+		AtomicReference<Throwable> decoderException = new AtomicReference<>();
+		
+		Thread decoder = new Thread(() -> {
+			OpenCVFrameConverter.ToMat converterToMat = new OpenCVFrameConverter.ToMat();
+			try {
+				int idx = seekToFrame(grabber, 0, rangeFirstIdx);
+				while (!stopped.get() && idx <= rangeLastIdx) {
+					if (idx < rangeFirstIdx || (idx - rangeFirstIdx) % rangeStride != 0) {
+						// Frame is not needed: jump to the next needed frame or decode without conversion
+						int nextIdx = idx < rangeFirstIdx ? rangeFirstIdx : idx + rangeStride - ((idx - rangeFirstIdx) % rangeStride);
+						if (rangeStride > Constants.DECODE_SEEK_MIN_STRIDE && nextIdx <= rangeLastIdx) {
+							idx = seekToFrame(grabber, idx, nextIdx);
+						}
+						if (idx != nextIdx) {
+							if (grabber.grabImage() == null) {
+								break;
+							}
+							idx++;
+						}
+						continue;
+					}
+					Frame frame = grabber.grabImage();
+					if (frame == null) {
+						break;
+					}
+					Mat mat = converterToMat.convert(frame);
+					Mat proxy = createProxy(mat, proxyScale);
+					queue.put(new VideoFrame(idx, colorFrames ? MatPool.copyOf(mat) : null, proxy));
+					idx++;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (Throwable e) {
+				// Any failure (e.g. of the conversion or an OutOfMemoryError) makes the stream incomplete
+				decoderException.set(e);
+			} finally {
+				try {
+					grabber.stop();
+					grabber.close();
+				} catch (Exception e) {
+					log.debug("Could not close grabber: {}", e.getMessage());
+				}
+				putEndOfStream(queue);
+			}
+		}, "decoder-" + new File(filePath).getName());
+		decoder.start();
+		
+		boolean endOfStream = false;
+		boolean interrupted = false;
+		try {
+			VideoFrame videoFrame;
+			while ((videoFrame = queue.take()) != END_OF_STREAM) {
+				if (stopped.get()) {
+					// Consumer does not need any further frames
+					videoFrame.deallocate();
+				} else if (!consumer.accept(videoFrame)) {
+					stopped.set(true);
+				}
+			}
+			endOfStream = true;
+		} catch (InterruptedException e) {
+			interrupted = true;
+		} finally {
+			stopped.set(true);
+			if (!endOfStream) {
+				drainQueue(queue);
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		
+		rethrow(decoderException.get());
+	}
+	
+	/**
+	 * Throws a failure of the decoder thread in the calling thread.
+	 */
+	
+	private static void rethrow(Throwable decoderException) throws Exception {
+		if (decoderException instanceof Exception) {
+			throw (Exception)decoderException;
+		} else if (decoderException instanceof RuntimeException) {
+			throw (RuntimeException)decoderException;
+		} else if (decoderException instanceof Error) {
+			throw (Error)decoderException;
+		} else if (decoderException != null) {
+			throw new IllegalStateException("Decoder failed.", decoderException);
+		}
+	}
+	
+	/**
+	 * Loads a single frame of a mp4 file given by an absolute path.
+	 * 
+	 * @param filePath - The absolute file path to a mp4 file
+	 * @param frameIdx - Index of the requested frame
+	 * @return The frame or null, if the video has less frames
+	 * @throws Exception - in case of grabFrameExceptions, type: org.bytedeco.javacv.FrameGrabber.Exception
+	 * @throws FileNotFoundException - in case of file was not found
+	 */
+	public static Mat loadFrame(String filePath, int frameIdx) throws Exception, FileNotFoundException {
+		FFmpegFrameGrabber grabber = startGrabber(filePath);
+		OpenCVFrameConverter.ToMat converterToMat = new OpenCVFrameConverter.ToMat();
+		
+		Mat mat = null;
+		Frame frame;
+		int idx = seekToFrame(grabber, 0, frameIdx);
+		while (idx <= frameIdx && (frame = grabber.grabImage()) != null) {
+			if (idx == frameIdx) {
+				mat = converterToMat.convert(frame).clone();
+			}
+			idx++;
+		}
+		
+		grabber.stop();
+		grabber.close();
+		return mat;
+	}
+	
+	/**
+	 * Creates a gray scale proxy of a color frame for motion analysis. The proxy is taken from the MatPool.
+	 * 
+	 * @param matColor - The color frame
+	 * @param proxyScale - 0 for no proxy, 1 for full resolution, n for 1/n of the resolution
+	 * @return The gray scale proxy or null
+	 */
+	
+	public static Mat createProxy(Mat matColor, int proxyScale) {
+		if (proxyScale <= 0) {
+			return null;
+		}
+		Mat matGray = MatPool.acquire(matColor.rows(), matColor.cols(), CV_8UC1);
+		cvtColor(matColor, matGray, COLOR_BGR2GRAY);
+		if (proxyScale == 1) {
+			return matGray;
+		}
+		int cols = Math.max(1, matGray.cols() / proxyScale);
+		int rows = Math.max(1, matGray.rows() / proxyScale);
+		Mat proxy = MatPool.acquire(rows, cols, CV_8UC1);
+		resize(matGray, proxy, new Size(cols, rows), 0, 0, INTER_AREA);
+		MatPool.release(matGray);
+		return proxy;
+	}
+	
+	/**
+	 * Estimates the native memory of the frame buffers needed to determine the static scene of a mp4 file
+	 * with the given StaticSceneMode: The size of a color frame times the number of frames held at the same time.
+	 * The exhaustive mode holds the second and third quarter, the other modes the frames in the hand-off queue.
+	 * The streaming mode additionally holds the candidates of the StreamingStaticSceneFinder and its previous and
+	 * pending frame.
+	 * 
+	 * @param filePath - The absolute file path to a mp4 file
+	 * @param mode - The StaticSceneMode
+	 * @return The estimated size in bytes
+	 * @throws Exception - in case the file could not be opened, type: org.bytedeco.javacv.FrameGrabber.Exception
+	 * @throws FileNotFoundException - in case of file was not found
+	 */
+	
+	public static long estimateFrameBufferBytes(String filePath, StaticSceneMode mode) throws Exception, FileNotFoundException {
+		FFmpegFrameGrabber grabber = startGrabber(filePath);
+		long frameBytes = (long)grabber.getImageWidth() * grabber.getImageHeight() * 3;
+		int totalFrameCnt = grabber.getLengthInFrames();
+		grabber.stop();
+		grabber.close();
+		
+		long frameCnt = Constants.STATICSCENE_STREAM_QUEUE_SIZE;
+		if (mode == StaticSceneMode.EXHAUSTIVE) {
+			frameCnt = Math.max(0, getLastIdx(totalFrameCnt) - getFirstIdx(totalFrameCnt) + 1);
+		} else if (mode == StaticSceneMode.STREAMING) {
+			frameCnt += Constants.STATICSCENE_STREAM_MAX_CANDIDATES + 2;
+		}
+		return frameBytes * (frameCnt + Constants.JOBS_FRAME_OVERHEAD);
+	}
+	
+	/**
+	 * Opens a mp4 file given by an absolute path.
+	 */
+	
+	private static FFmpegFrameGrabber startGrabber(String filePath) throws Exception, FileNotFoundException {
+		File file = new File(filePath);
+		if (!file.exists()) {
+			throw new FileNotFoundException("File not found: " + filePath);
+		}
+		
+		FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(filePath);
+		grabber.start();
+		return grabber;
+	}
+	
+	/**
+	 * Returns the index of the first frame of the second quarter. Index i corresponds to frame counter i + 1.
+	 */
+	
+	private static int getFirstIdx(int totalFrameCnt) {
+		int IdxFirstQuarter = (int)(totalFrameCnt / 4);
+		return Math.max(0, IdxFirstQuarter - 1);
+	}
+	
+	/**
+	 * Returns the index of the last frame of the third quarter. Index i corresponds to frame counter i + 1.
+	 */
+	
+	private static int getLastIdx(int totalFrameCnt) {
+		int IdxThirdQuarter = (int)(totalFrameCnt / 4 * 3);
+		return IdxThirdQuarter - 1;
+	}
+	
+	/**
+	 * Seeks forward to a given frame. FFmpeg jumps to the preceding keyframe and the grabber decodes
+	 * the remaining frames until the requested one, so the next grabbed image is exactly this frame.
+	 * 
+	 * @param grabber - The started grabber
+	 * @param currentIdx - Index of the frame, the grabber would return next
+	 * @param targetIdx - Index of the requested frame
+	 * @return The index of the frame, the grabber will return next
+	 * @throws Exception - in case of seeking problems
+	 */
+	
+	private static int seekToFrame(FFmpegFrameGrabber grabber, int currentIdx, int targetIdx) throws Exception {
+		if (!Constants.DECODE_SEEK || targetIdx <= currentIdx) {
+			return currentIdx;
+		}
+		grabber.setFrameNumber(targetIdx);
+		return targetIdx;
+	}
+	
+	/**
+	 * Puts the end marker into the queue. It waits, until the consumer has taken enough frames.
+	 */
+	
+	private static void putEndOfStream(BlockingQueue<VideoFrame> queue) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				queue.put(END_OF_STREAM);
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Frees all frames, which are not consumed anymore, until the decoder thread has put the end marker.
+	 */
+	
+	private static void drainQueue(BlockingQueue<VideoFrame> queue) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				VideoFrame videoFrame = queue.take();
+				if (videoFrame == END_OF_STREAM) {
+					break;
+				}
+				videoFrame.deallocate();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
 }
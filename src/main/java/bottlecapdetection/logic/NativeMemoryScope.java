@@ -0,0 +1,196 @@
+package bottlecapdetection.logic;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.javacpp.PointerScope;
+import org.bytedeco.opencv.opencv_core.AbstractMat;
+import org.bytedeco.opencv.opencv_core.AbstractScalar;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bottlecapdetection.model.NativeMemoryStatistics;
+
+/**
+ * This class is the native memory scope of a processing stage.
+ *
+ * All native objects (Mats, MatVectors, Rects, Sizes, Scalars, ...) created by the current thread while the
+ * scope is open are attached to it (see JavaCPP PointerScope). When the scope is closed, all of them are freed,
+ * except the objects explicitly retained as result of the stage. The owner of a retained object frees it.
+ * Native objects created by other threads (decoder, threshold sweep, fork-join pool) are not attached.
+ *
+ * For each stage the created, retained and freed bytes are summed up. JavaCPP just knows the size of the
+ * native structures, so the buffer size of Mats is added when the Mat is created and when the scope is closed.
+ *
+ * Usage:
+ *
+ * try (NativeMemoryScope scope = new NativeMemoryScope("roi")) {
+ *     ROIResult roiResult = Logic.extractROI(staticScene);
+ *     scope.retain(roiResult.getRoiSubImage());
+ * }
+ *
+ * @author Alexander Buechel
+ *
+ */
+
+public class NativeMemoryScope extends PointerScope {
+
+	private static final Logger log = LoggerFactory.getLogger(NativeMemoryScope.class);
+
+	private static final Map<String, NativeMemoryStatistics> statistics = new TreeMap<>();
+
+	static {
+		// Classes with static native constants must be initialized before the first scope is opened
+		for (Class<?> cls : new Class<?>[] {AbstractMat.class, AbstractScalar.class}) {
+			try {
+				Class.forName(cls.getName(), true, cls.getClassLoader());
+			} catch (ClassNotFoundException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	private final String stage;
+	private final long startPhysicalBytes;
+
+	// Attached objects with their size at creation
+	private final Map<Pointer, Long> attached = new IdentityHashMap<>();
+	private long objectCnt = 0;
+	private long allocatedBytes = 0;
+	private long retainedBytes = 0;
+
+	/**
+	 * Opens a scope for the current thread.
+	 *
+	 * @param stage - The name of the stage, the statistics are summed up by this name
+	 */
+
+	@SuppressWarnings("unchecked") // super() creates an empty Class<? extends Pointer>[] for all pointer classes
+	public NativeMemoryScope(String stage) {
+		super();
+		this.stage = stage;
+		this.startPhysicalBytes = Pointer.physicalBytes();
+	}
+
+	@Override
+	public PointerScope attach(Pointer pointer) {
+		if (!attached.containsKey(pointer)) {
+			attached.put(pointer, getBytes(pointer));
+			objectCnt++;
+		}
+		return super.attach(pointer);
+	}
+
+	@Override
+	public PointerScope detach(Pointer pointer) {
+		Long bytes = attached.remove(pointer);
+		if (bytes != null) {
+			allocatedBytes += Math.max(bytes, getBytes(pointer));
+		}
+		return super.detach(pointer);
+	}
+
+	/**
+	 * Retains a native object created in this scope: It is not freed when the scope is closed.
+	 * Objects, which are not attached to this scope, are not touched.
+	 *
+	 * @param pointer - A native object or null
+	 * @return The same native object
+	 */
+
+	public <P extends Pointer> P retain(P pointer) {
+		if (pointer != null && attached.containsKey(pointer)) {
+			retainedBytes += getBytes(pointer);
+			pointer.retainReference(); // detach() releases one reference
+			detach(pointer);
+		}
+		return pointer;
+	}
+
+	/**
+	 * Retains a native object in the innermost scope of the current thread, if it is a NativeMemoryScope.
+	 * It is used by long living structures like the MatPool, which free their objects on their own.
+	 *
+	 * @param pointer - A native object or null
+	 * @return The same native object
+	 */
+
+	public static <P extends Pointer> P retainInCurrentScope(P pointer) {
+		PointerScope scope = PointerScope.getInnerScope();
+		if (scope instanceof NativeMemoryScope) {
+			((NativeMemoryScope)scope).retain(pointer);
+		}
+		return pointer;
+	}
+
+	/**
+	 * Frees all native objects, which were not retained, and stores the statistics of this scope.
+	 */
+
+	@Override
+	public void close() {
+		long collectedBytes = 0;
+		List<Long> remaining = new ArrayList<>(attached.size());
+		for (Map.Entry<Pointer, Long> entry : attached.entrySet()) {
+			long bytes = getBytes(entry.getKey());
+			collectedBytes += bytes;
+			remaining.add(Math.max(entry.getValue(), bytes));
+		}
+		for (long bytes : remaining) {
+			allocatedBytes += bytes;
+		}
+		attached.clear();
+		super.close();
+
+		long physicalGrowth = Pointer.physicalBytes() - startPhysicalBytes;
+		log.debug("Native memory of stage {}: {} native objects, {} bytes allocated, {} bytes retained, {} bytes freed by scope, {} bytes physical growth", stage, objectCnt, allocatedBytes, retainedBytes, collectedBytes, physicalGrowth);
+		synchronized (statistics) {
+			statistics.computeIfAbsent(stage, NativeMemoryStatistics::new).add(objectCnt, allocatedBytes, retainedBytes, collectedBytes, physicalGrowth);
+		}
+	}
+
+	/**
+	 * Returns the statistics of all stages, ordered by stage name.
+	 *
+	 * @return The statistics
+	 */
+
+	public static List<NativeMemoryStatistics> getStatistics() {
+		synchronized (statistics) {
+			return new ArrayList<>(statistics.values());
+		}
+	}
+
+	/**
+	 * Writes the statistics of all stages and the currently allocated native memory to the log.
+	 */
+
+	public static void logStatistics() {
+		for (NativeMemoryStatistics stageStatistics : getStatistics()) {
+			log.info("Native memory of stage {}", stageStatistics);
+		}
+		log.info("Native memory: {} bytes tracked by JavaCPP, {} bytes physical, {} bytes in MatPool", Pointer.totalBytes(), Pointer.physicalBytes(), MatPool.getPooledBytes());
+	}
+
+	/**
+	 * Returns the size of a native object. For Mats the size of the buffer is added.
+	 */
+
+	private static long getBytes(Pointer pointer) {
+		if (pointer.isNull()) {
+			return 0;
+		}
+		long bytes = pointer.sizeof() * Math.max(1, pointer.capacity());
+		if (pointer instanceof Mat) {
+			Mat mat = (Mat)pointer;
+			bytes += mat.total() * mat.elemSize();
+		}
+		return bytes;
+	}
+
+}
@@ -0,0 +1,235 @@
+package bottlecapdetection.logic;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bottlecapdetection.Constants;
+import bottlecapdetection.exceptions.IOException;
+import bottlecapdetection.model.ClassificationResult;
+import bottlecapdetection.model.ObjectDetectionJobResult;
+import lombok.Getter;
+
+/**
+ * This class processes several mp4 files in the same JVM. So the native libraries are loaded and the code is
+ * compiled just once for all videos. The videos are processed in parallel by the ObjectDetectionExecutor
+ * or - if Constants.JOBS_PIPELINE is set - by the ObjectDetectionPipeline (see Constants.JOBS_*).
+ *
+ * For each video the same results are written as for a single video (csv file and image), in the order of
+ * the videos. Afterwards the native memory of the video is freed, just the counts are kept for the summary
+ * file Constants.GENERAL_BATCH_SUMMARY_FILE. A failing video does not stop the batch.
+ *
+ * @author Alexander Buechel
+ *
+ */
+
+public class ObjectDetectionBatch {
+
+	private static final Logger log = LoggerFactory.getLogger(ObjectDetectionBatch.class);
+
+	private List<File> videoFiles;
+	private File outputDir;
+	@Getter private List<ObjectDetectionJobResult> results = Collections.synchronizedList(new ArrayList<>());
+
+	public ObjectDetectionBatch(List<File> videoFiles, File outputDir) {
+		this.videoFiles = videoFiles;
+		this.outputDir = outputDir;
+	}
+
+	/**
+	 * Checks, if the input is a single mp4 file, which is processed without summary as before.
+	 *
+	 * @param input - The input argument
+	 * @return true, if the input is a path to a mp4 file
+	 */
+
+	public static boolean isSingleVideo(String input) {
+		return input.toLowerCase().endsWith(".mp4") && !isGlob(input);
+	}
+
+	/**
+	 * Determines the mp4 files of an input argument, which is one of:
+	 *
+	 * a mp4 file : just this file (it may not exist)
+	 * a directory : all mp4 files in this directory
+	 * a glob pattern : all files in the directory of the pattern matching the file name pattern, e.g. videos/CV20_video_1*.mp4
+	 * a manifest file : a text file with one path per line, relative paths are resolved against the directory of the manifest.
+	 *                   Empty lines and lines starting with # are ignored.
+	 *
+	 * Except for the manifest, the files are sorted by name.
+	 *
+	 * @param input - The input argument
+	 * @return The list of mp4 files
+	 * @throws IOException - In case the input could not be read
+	 */
+
+	public static List<File> resolveVideoFiles(String input) throws IOException {
+		List<File> files = new ArrayList<>();
+		if (isSingleVideo(input)) {
+			files.add(new File(input));
+			return files;
+		}
+
+		try {
+			File inputFile = new File(input);
+			if (isGlob(input)) {
+				// Wildcards are not allowed in Windows paths, so just the directory part becomes a Path
+				int separatorIdx = Math.max(input.lastIndexOf('/'), input.lastIndexOf(File.separatorChar));
+				Path dir = Paths.get(separatorIdx < 0 ? "." : input.substring(0, separatorIdx + 1));
+				PathMatcher matcher = dir.getFileSystem().getPathMatcher("glob:" + input.substring(separatorIdx + 1));
+				try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+					for (Path path : stream) {
+						if (Files.isRegularFile(path) && matcher.matches(path.getFileName())) {
+							files.add(path.toFile());
+						}
+					}
+				}
+				Collections.sort(files);
+			} else if (inputFile.isDirectory()) {
+				File[] mp4Files = inputFile.listFiles((dir, name) -> name.toLowerCase().endsWith(".mp4"));
+				if (mp4Files != null) {
+					Collections.addAll(files, mp4Files);
+				}
+				Collections.sort(files);
+			} else if (inputFile.isFile()) {
+				for (String line : Files.readAllLines(inputFile.toPath(), StandardCharsets.UTF_8)) {
+					line = line.trim();
+					if (line.isEmpty() || line.startsWith("#")) {
+						continue;
+					}
+					File file = new File(line);
+					files.add(file.isAbsolute() ? file : new File(inputFile.getAbsoluteFile().getParentFile(), line));
+				}
+			} else {
+				throw new IOException("Could not find input: " + input);
+			}
+		} catch (java.io.IOException | RuntimeException e) {
+			throw new IOException("Could not read input " + input + ": " + e.getMessage());
+		}
+		return files;
+	}
+
+	private static boolean isGlob(String input) {
+		return input.contains("*") || input.contains("?") || input.contains("[") || input.contains("{");
+	}
+
+	/**
+	 * Processes all videos and writes the results of each video and the summary.
+	 */
+
+	public void execute() {
+		log.info("Start batch with {} videos.", videoFiles.size());
+		long start = System.currentTimeMillis();
+		if (Constants.JOBS_PIPELINE) {
+			executePipeline();
+		} else {
+			executeJobs();
+		}
+
+		writeSummary();
+		NativeMemoryScope.logStatistics();
+		long failedCnt = results.stream().filter(result -> !result.getFailedMsg().isEmpty()).count();
+		log.info("Processed {} videos in {} ms ({} failed).", results.size(), System.currentTimeMillis() - start, failedCnt);
+	}
+
+	/**
+	 * Processes the videos as whole jobs in parallel.
+	 */
+
+	private void executeJobs() {
+		try (ObjectDetectionExecutor executor = new ObjectDetectionExecutor()) {
+			// Finished videos are written while further videos are submitted, so their results are freed early
+			Deque<Future<ObjectDetectionJobResult>> pending = new ArrayDeque<>();
+			for (File videoFile : videoFiles) {
+				pending.add(executor.submit(videoFile, outputDir));
+				while (!pending.isEmpty() && pending.peek().isDone()) {
+					results.add(writeResults(ObjectDetectionExecutor.getResult(pending.poll())));
+				}
+			}
+			while (!pending.isEmpty()) {
+				results.add(writeResults(ObjectDetectionExecutor.getResult(pending.poll())));
+			}
+			log.info("At most {} videos were processed in parallel.", executor.getPeakRunningJobs());
+		} catch (InterruptedException e) {
+			log.warn("Batch was interrupted after {} videos.", results.size());
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Processes the videos in the stages of a pipeline. The results are finished in any order, so they are
+	 * sorted by the order of the videos afterwards.
+	 */
+
+	private void executePipeline() {
+		ObjectDetectionPipeline pipeline = new ObjectDetectionPipeline(outputDir, result -> results.add(writeResults(result)));
+		try {
+			for (File videoFile : videoFiles) {
+				pipeline.submit(videoFile);
+			}
+		} catch (InterruptedException e) {
+			log.warn("Batch was interrupted after {} videos.", results.size());
+			Thread.currentThread().interrupt();
+		} finally {
+			pipeline.close();
+		}
+		pipeline.logStatistics();
+		synchronized (results) {
+			results.sort((r1, r2) -> Integer.compare(videoFiles.indexOf(r1.getVideoFile()), videoFiles.indexOf(r2.getVideoFile())));
+		}
+	}
+
+	/**
+	 * Writes the results of a single video and frees its native memory. It is used by the WatchFolder as well.
+	 */
+
+	static ObjectDetectionJobResult writeResults(ObjectDetectionJobResult result) {
+		if (result.getFailedMsg().isEmpty()) {
+			result.writeResultsToCsvFile();
+			result.printResults();
+			result.storeResultAsImage();
+		}
+		result.release();
+		return result;
+	}
+
+	/**
+	 * Writes one line per video into the summary file: the counted objects, the counts of the json file
+	 * (if available), the processing time and the failure message.
+	 */
+
+	public void writeSummary() {
+		File summaryFile = new File(outputDir, Constants.GENERAL_BATCH_SUMMARY_FILE);
+		try (FileWriter fileWriter = new FileWriter(summaryFile)) {
+			fileWriter.write("video,staticSceneIdx,faceUp,faceDown,deformed,distractors,total,jsonFaceUp,jsonFaceDown,jsonDeformed,duration,failed\r\n");
+			for (ObjectDetectionJobResult result : results) {
+				ClassificationResult counts = result.getClassificationResult();
+				ClassificationResult json = result.getJsonResult();
+				fileWriter.write("'" + result.getVideoFile().getName() + "',"
+						+ (counts != null ? result.getObjectDetectionResult().getStaticSceneIdx() : "") + ","
+						+ (counts != null ? counts.getBottleCapFaceUpCnt() + "," + counts.getBottleCapFaceDownCnt() + "," + counts.getBottleCapDeformedCnt() + "," + counts.getDistractorCnt() + "," + counts.totalCnt() : ",,,,") + ","
+						+ (json != null ? json.getBottleCapFaceUpCnt() + "," + json.getBottleCapFaceDownCnt() + "," + json.getBottleCapDeformedCnt() : ",,") + ","
+						+ result.getDuration() + ","
+						+ "'" + result.getFailedMsg().replace("'", "") + "'\r\n");
+			}
+			log.info("Summary is written to output file: {}", summaryFile);
+		} catch (java.io.IOException e) {
+			log.warn("Could not write file:", e);
+		}
+	}
+
+}
@@ -0,0 +1,210 @@
+package bottlecapdetection.logic;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bottlecapdetection.Constants;
+import bottlecapdetection.model.ObjectDetectionJobResult;
+
+/**
+ * This class runs several object detection jobs in parallel.
+ *
+ * A job is admitted, as soon as a thread and its estimated native memory are available: The memory budget
+ * is a semaphore with one permit per MB, each job takes the permits of its frame buffers (see
+ * Mp4FileLoader.estimateFrameBufferBytes) and gives them back, when it has finished. A job larger than the
+ * whole budget takes all permits and runs alone. So many small videos saturate all threads, while a few
+ * large videos do not exceed the memory, which is available for all of them.
+ *
+ * Failures stay within a job: Like in ObjectDetectionJob.process() any exception - and any error - is stored in
+ * the failedMsg of its result, the other jobs are not affected.
+ *
+ * @author Alexander Buechel
+ *
+ */
+
+public class ObjectDetectionExecutor implements AutoCloseable {
+
+	private static final Logger log = LoggerFactory.getLogger(ObjectDetectionExecutor.class);
+
+	private static final long MB = 1024L * 1024;
+
+	private final int threads;
+	private final int memoryBudget; // in [MB]
+	private final Semaphore threadPermits;
+	private final Semaphore memoryPermits;
+	private final ExecutorService executor;
+
+	private final AtomicInteger runningJobs = new AtomicInteger(0);
+	private final AtomicInteger peakRunningJobs = new AtomicInteger(0);
+
+	/**
+	 * Creates an executor with the settings of Constants.JOBS_THREADS and Constants.JOBS_MEMORY_BUDGET.
+	 */
+
+	public ObjectDetectionExecutor() {
+		this(Constants.JOBS_THREADS, Constants.JOBS_MEMORY_BUDGET);
+	}
+
+	/**
+	 * @param threads - Max. number of jobs running at the same time (>= 1)
+	 * @param memoryBudget - Max. estimated native memory of all running jobs in [MB] (>= 1)
+	 */
+
+	public ObjectDetectionExecutor(int threads, long memoryBudget) {
+		this.threads = Math.max(1, threads);
+		this.memoryBudget = (int)Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget));
+		this.threadPermits = new Semaphore(this.threads, true);
+		this.memoryPermits = new Semaphore(this.memoryBudget, true);
+		AtomicInteger threadCnt = new AtomicInteger(0);
+		this.executor = Executors.newFixedThreadPool(this.threads, runnable -> {
+			Thread thread = new Thread(runnable, "job-" + threadCnt.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		log.debug("Created job executor with {} threads and a memory budget of {} MB.", this.threads, this.memoryBudget);
+	}
+
+	/**
+	 * Submits a job. The call blocks, until the job is admitted.
+	 *
+	 * @param videoFile - The mp4 file
+	 * @param outputDir - The result directory or null
+	 * @return The future result of the job, it never fails: failures are given by the failedMsg of the result
+	 * @throws InterruptedException - In case of the calling thread was interrupted while waiting for admission
+	 */
+
+	public Future<ObjectDetectionJobResult> submit(File videoFile, File outputDir) throws InterruptedException {
+		int cost = estimateCost(videoFile);
+		threadPermits.acquire();
+		try {
+			memoryPermits.acquire(cost);
+		} catch (InterruptedException e) {
+			threadPermits.release();
+			throw e;
+		}
+
+		int running = runningJobs.incrementAndGet();
+		peakRunningJobs.accumulateAndGet(running, Math::max);
+		log.debug("Admitted job for {} ({} MB, {} jobs running, {} MB left).", videoFile.getName(), cost, running, memoryPermits.availablePermits());
+
+		return executor.submit(() -> {
+			try {
+				return process(videoFile, outputDir);
+			} finally {
+				runningJobs.decrementAndGet();
+				memoryPermits.release(cost);
+				threadPermits.release();
+			}
+		});
+	}
+
+	/**
+	 * Processes all videos and waits for their results.
+	 *
+	 * @param videoFiles - The mp4 files
+	 * @param outputDir - The result directory or null
+	 * @return The results in the order of the videos
+	 * @throws InterruptedException - In case of the calling thread was interrupted
+	 */
+
+	public List<ObjectDetectionJobResult> executeAll(List<File> videoFiles, File outputDir) throws InterruptedException {
+		List<Future<ObjectDetectionJobResult>> futures = new ArrayList<>();
+		for (File videoFile : videoFiles) {
+			futures.add(submit(videoFile, outputDir));
+		}
+		List<ObjectDetectionJobResult> results = new ArrayList<>();
+		for (Future<ObjectDetectionJobResult> future : futures) {
+			results.add(getResult(future));
+		}
+		return results;
+	}
+
+	/**
+	 * Waits for the result of a submitted job.
+	 *
+	 * @param future - The future returned by submit()
+	 * @return The result
+	 * @throws InterruptedException - In case of the calling thread was interrupted
+	 */
+
+	public static ObjectDetectionJobResult getResult(Future<ObjectDetectionJobResult> future) throws InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			// process() catches everything, so this is not expected
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * Runs a single job. Exceptions and errors (e.g. OutOfMemoryError), which are not handled by the job, are
+	 * stored in the failedMsg of its result, so they do not affect the other jobs.
+	 */
+
+	private static ObjectDetectionJobResult process(File videoFile, File outputDir) {
+		ObjectDetectionJob job = new ObjectDetectionJob(videoFile, outputDir);
+		try {
+			job.process();
+		} catch (Throwable e) {
+			log.warn("Processing of {} failed:", videoFile, e);
+			job.getResult().setFailedMsg("Exception: " + e);
+			job.getResult().endProcessingTime();
+		}
+		if (!job.getResult().getFailedMsg().isEmpty()) {
+			log.warn(job.getResult().getFailedMsg());
+		}
+		return job.getResult();
+	}
+
+	/**
+	 * Returns the number of memory permits for a video, at least 1 and at most the whole budget.
+	 * A video, which cannot be opened, gets 1 permit: its job fails fast anyway.
+	 */
+
+	private int estimateCost(File videoFile) {
+		long bytes = 0;
+		try {
+			bytes = Mp4FileLoader.estimateFrameBufferBytes(videoFile.getAbsolutePath(), Constants.STATICSCENE_MODE);
+		} catch (Throwable e) {
+			log.debug("Could not estimate memory of {}: {}", videoFile, e.toString());
+		}
+		return (int)Math.max(1, Math.min(memoryBudget, (bytes + MB - 1) / MB));
+	}
+
+	public int getRunningJobs() {
+		return runningJobs.get();
+	}
+
+	public int getPeakRunningJobs() {
+		return peakRunningJobs.get();
+	}
+
+	/**
+	 * Waits for all submitted jobs and stops the threads.
+	 */
+
+	@Override
+	public void close() {
+		executor.shutdown();
+		try {
+			while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+				log.debug("Waiting for {} running jobs.", runningJobs.get());
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
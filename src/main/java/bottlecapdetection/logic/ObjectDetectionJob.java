@@ -4,12 +4,16 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.util.List;
 
+import org.bytedeco.javacpp.Pointer;
 import org.bytedeco.javacv.FrameGrabber.Exception;
 import org.bytedeco.opencv.opencv_core.Mat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import bottlecapdetection.Constants;
 import bottlecapdetection.exceptions.MatException;
+import bottlecapdetection.model.DetectedObject;
+import bottlecapdetection.model.JobStage;
 import bottlecapdetection.model.ObjectDetectionJobResult;
 import bottlecapdetection.model.ObjectDetectionResult;
 import bottlecapdetection.model.ROIResult;
@@ -31,40 +35,54 @@ public class ObjectDetectionJob {
 	
 	@Getter private ObjectDetectionJobResult result = null;
 	
+	// Results handed over from one stage to the next one
+	private StaticSceneResult staticSceneResult = null;
+	private ROIResult roiResult = null;
+	
 	public ObjectDetectionJob(File videoFile, File outputDir) {
 		result = new ObjectDetectionJobResult(videoFile, outputDir);
 	}
 	
 	/**
-	 * This method performs the execution of object detection job
+	 * This method performs the execution of object detection job: all stages one after another.
 	 */
 	
 	public void process() {
 		log.info("Process started for {}", result.getVideoFile().getName());
 		result.startProcessingTime();
-		
+		for (JobStage stage : JobStage.values()) {
+			if (!processStage(stage)) {
+				break;
+			}
+		}
+		result.endProcessingTime();
+	}
+	
+	/**
+	 * Performs a single stage of the job. The stages must be performed in the order of JobStage, each
+	 * of them just once, but they may run in different threads. Each stage runs in its own NativeMemoryScope:
+	 * Just the static scene, the ROI and the detected objects are retained, they are freed by the next stage
+	 * or by ObjectDetectionJobResult.release().
+	 * 
+	 * @param stage - The stage
+	 * @return true, if the job can continue with the next stage. Otherwise the failedMsg of the result is set.
+	 */
+	
+	public boolean processStage(JobStage stage) {
 		try {
-			//Read file
-			List<Mat> matList = Mp4FileLoader.loadMP4File(result.getVideoFile().getAbsolutePath());
-			
-			//Get static scene
-			StaticSceneResult ssR = StaticSceneFinder.find(matList);
-			Mat staticScene = ssR.getStaticScene();
-			
-			//Find ROI
-			ROIResult rr = Logic.extractROI(staticScene);
-			Mat roi = rr.getRoiSubImage();
-	
-			//Find & Classify objects
-		    ObjectDetectionResult odr = Logic.localizeAndClassifyObjects(roi);
-		    odr.setStaticSceneIdx(ssR.getStaticSceneIdx());
-		    
-		    //Set job results
-		    result.setObjectDetectionResult(odr);
-			result.getObjectDetectionResult().setRoi(roi);
-			result.countObjects();
-			result.analyseJsonFile();
-			
+			switch (stage) {
+			case STATIC_SCENE:
+				processStaticSceneStage();
+				break;
+			case ROI:
+				processROIStage();
+				break;
+			case LOCALIZATION:
+			default:
+				processLocalizationStage();
+				break;
+			}
+			return true;
 		} catch (FileNotFoundException e) {
 			result.setFailedMsg("FileNotFound: " + result.getVideoFile().getName());
 		} catch (MatException e) {
@@ -72,6 +90,107 @@ public class ObjectDetectionJob {
 		} catch (Exception e) {
 			result.setFailedMsg("Exception: " + e.getMessage());
 		}
-		result.endProcessingTime();
+		return false;
+	}
+	
+	/**
+	 * Reads the file and gets the static scene.
+	 */
+	
+	private void processStaticSceneStage() throws Exception, FileNotFoundException, MatException {
+		try (NativeMemoryScope scope = new NativeMemoryScope("staticScene")) {
+			staticSceneResult = findStaticScene(result.getVideoFile().getAbsolutePath());
+			scope.retain(staticSceneResult.getStaticScene());
+		}
+	}
+	
+	/**
+	 * Finds the ROI - the ROI refers to the buffer of the static scene, which is freed with the ROI.
+	 */
+	
+	private void processROIStage() {
+		Mat staticScene = staticSceneResult.getStaticScene();
+		try (NativeMemoryScope scope = new NativeMemoryScope("roi")) {
+			roiResult = findROI(staticScene);
+			scope.retain(roiResult.getRoiSubImage());
+		} finally {
+			staticScene.deallocate();
+		}
+	}
+	
+	/**
+	 * Finds & classifies the objects and sets the job results.
+	 */
+	
+	private void processLocalizationStage() {
+		Mat roi = roiResult.getRoiSubImage();
+		ObjectDetectionResult odr;
+		try (NativeMemoryScope scope = new NativeMemoryScope("localization")) {
+			odr = Logic.localizeAndClassifyObjects(roi);
+			scope.retain(odr.getContours());
+			for (DetectedObject detObj : odr.getObjects()) {
+				for (Pointer pointer : detObj.getNativeObjects()) {
+					scope.retain(pointer);
+				}
+			}
+		}
+		odr.setStaticSceneIdx(staticSceneResult.getStaticSceneIdx());
+		
+		result.setObjectDetectionResult(odr);
+		result.getObjectDetectionResult().setRoi(roi);
+		result.countObjects();
+		result.analyseJsonFile();
+	}
+	
+	/**
+	 * Determines the ROI of the static scene. If enabled, the ROI of a known camera rig is taken from the RoiCache
+	 * stored in the result directory.
+	 * 
+	 * @param staticScene - The static scene
+	 * @return The ROI
+	 */
+	
+	private ROIResult findROI(Mat staticScene) {
+		if (Constants.ROI_CACHE_ENABLED && result.getOutputDir() != null && result.getOutputDir().isDirectory()) {
+			return RoiCache.getInstance(new File(result.getOutputDir(), Constants.ROI_CACHE_FILE)).extractROI(staticScene);
+		}
+		return Logic.extractROI(staticScene);
+	}
+	
+	/**
+	 * Reads the video file and determines the static scene based on the configured StaticSceneMode.
+	 * 
+	 * @param filePath - The absolute file path to a mp4 file
+	 * @return The static scene
+	 */
+	
+	private StaticSceneResult findStaticScene(String filePath) throws Exception, FileNotFoundException, MatException {
+		switch (Constants.STATICSCENE_MODE) {
+		case EXHAUSTIVE:
+			List<Mat> matList = Mp4FileLoader.loadMP4File(filePath);
+			StaticSceneResult staticSceneResult = null;
+			try {
+				staticSceneResult = StaticSceneFinder.find(matList);
+			} finally {
+				// StaticSceneFinder.find() releases all frames except the static scene itself, just a failed find() leaves them to us
+				if (staticSceneResult == null) {
+					for (Mat mat : matList) {
+						MatPool.release(mat);
+					}
+				}
+			}
+			return staticSceneResult;
+		case PYRAMID:
+			return PyramidStaticSceneFinder.find(filePath);
+		case EARLY_TERMINATION:
+			StreamingStaticSceneFinder stableFinder = new StreamingStaticSceneFinder(filePath, Constants.STATICSCENE_PROXY_SCALE, Constants.STATICSCENE_STABLE_RUN_LENGTH, Constants.STATICSCENE_STABLE_MAX_MOTION);
+			Mp4FileLoader.streamMP4File(filePath, stableFinder);
+			return stableFinder.getResult();
+		case STREAMING:
+		default:
+			StreamingStaticSceneFinder finder = new StreamingStaticSceneFinder(filePath);
+			Mp4FileLoader.streamMP4File(filePath, finder);
+			return finder.getResult();
+		}
 	}
 }
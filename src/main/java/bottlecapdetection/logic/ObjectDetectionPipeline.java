@@ -0,0 +1,269 @@
+package bottlecapdetection.logic;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bottlecapdetection.Constants;
+import bottlecapdetection.model.JobStage;
+import bottlecapdetection.model.ObjectDetectionJobResult;
+import bottlecapdetection.model.PipelineStageStatistics;
+
+/**
+ * This class processes object detection jobs in a pipeline: Each JobStage and the output of the results
+ * is a pipeline stage with its own worker threads. The stages are connected by bounded hand-off queues,
+ * so the next video is decoded while the previous one is classified and written.
+ *
+ * A full queue blocks the stage in front of it (and submit() in front of the first stage). So at most
+ * queue size + workers jobs are held by each stage, independent of the number of videos. A failed job
+ * is passed through the remaining stages without processing, its result is given to the output as well.
+ *
+ * The queue depths and the occupancy of the workers of each stage are logged at the end, to size the workers
+ * (see Constants.JOBS_PIPELINE_*).
+ *
+ * @author Alexander Buechel
+ *
+ */
+
+public class ObjectDetectionPipeline implements AutoCloseable {
+
+	private static final Logger log = LoggerFactory.getLogger(ObjectDetectionPipeline.class);
+
+	private static final String OUTPUT_STAGE = "OUTPUT";
+
+	// Marks the end of the jobs in the hand-off queues
+	private static final ObjectDetectionJob END_OF_JOBS = new ObjectDetectionJob(null, null);
+
+	private final File outputDir;
+	private final Consumer<ObjectDetectionJobResult> output;
+	private final List<Stage> stages = new ArrayList<>();
+	private final long startTime;
+	private boolean closed = false;
+
+	/**
+	 * A stage of the pipeline: the queue in front of it and its workers.
+	 */
+
+	private class Stage {
+
+		private final JobStage jobStage; // null for the output stage
+		private final BlockingQueue<ObjectDetectionJob> queue;
+		private final PipelineStageStatistics statistics;
+		private final List<Thread> workers = new ArrayList<>();
+		private final AtomicInteger activeWorkers;
+		private Stage next = null;
+
+		private Stage(JobStage jobStage, int workerCnt, int queueSize) {
+			String name = jobStage != null ? jobStage.name() : OUTPUT_STAGE;
+			this.jobStage = jobStage;
+			this.queue = new ArrayBlockingQueue<>(queueSize);
+			this.statistics = new PipelineStageStatistics(name, workerCnt, queueSize);
+			this.activeWorkers = new AtomicInteger(workerCnt);
+			for (int i = 1; i <= workerCnt; i++) {
+				Thread worker = new Thread(this::work, "pipeline-" + name.toLowerCase() + "-" + i);
+				worker.setDaemon(true);
+				workers.add(worker);
+			}
+		}
+
+		private void put(ObjectDetectionJob job) throws InterruptedException {
+			queue.put(job);
+			if (job != END_OF_JOBS) {
+				statistics.jobQueued(queue.size());
+			}
+		}
+
+		private void work() {
+			try {
+				while (true) {
+					ObjectDetectionJob job = queue.take();
+					if (job == END_OF_JOBS) {
+						// Let the other workers of this stage see the end as well
+						queue.put(END_OF_JOBS);
+						return;
+					}
+					statistics.jobStarted(queue.size());
+					long start = System.currentTimeMillis();
+					try {
+						process(this, job);
+					} finally {
+						statistics.jobFinished(System.currentTimeMillis() - start);
+					}
+					if (next != null) {
+						next.put(job);
+					}
+				}
+			} catch (InterruptedException e) {
+				log.warn("Pipeline stage {} was interrupted.", statistics.getStage());
+				Thread.currentThread().interrupt();
+			} finally {
+				// The last worker passes the end on, even if it stopped unexpectedly, so close() does not wait forever
+				if (activeWorkers.decrementAndGet() == 0 && next != null) {
+					next.putEndOfJobs();
+				}
+			}
+		}
+
+		private void putEndOfJobs() {
+			boolean interrupted = Thread.interrupted();
+			while (true) {
+				try {
+					queue.put(END_OF_JOBS);
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Creates a pipeline with the settings of Constants.JOBS_PIPELINE_*.
+	 *
+	 * @param outputDir - The result directory or null
+	 * @param output - Called for the result of each job (in the order the jobs are finished)
+	 */
+
+	public ObjectDetectionPipeline(File outputDir, Consumer<ObjectDetectionJobResult> output) {
+		this(outputDir, output, Constants.JOBS_PIPELINE_QUEUE_SIZE, Constants.JOBS_PIPELINE_STATICSCENE_WORKERS,
+				Constants.JOBS_PIPELINE_ROI_WORKERS, Constants.JOBS_PIPELINE_LOCALIZATION_WORKERS, Constants.JOBS_PIPELINE_OUTPUT_WORKERS);
+	}
+
+	/**
+	 * @param outputDir - The result directory or null
+	 * @param output - Called for the result of each job (in the order the jobs are finished)
+	 * @param queueSize - Capacity of each hand-off queue (>= 1)
+	 * @param workers - Number of workers of the stages STATIC_SCENE, ROI, LOCALIZATION and OUTPUT (>= 1)
+	 */
+
+	public ObjectDetectionPipeline(File outputDir, Consumer<ObjectDetectionJobResult> output, int queueSize, int... workers) {
+		this.outputDir = outputDir;
+		this.output = output;
+		JobStage[] jobStages = JobStage.values();
+		if (workers.length != jobStages.length + 1) {
+			throw new IllegalArgumentException("Expected " + (jobStages.length + 1) + " worker counts, but got " + workers.length);
+		}
+		for (int i = 0; i <= jobStages.length; i++) {
+			Stage stage = new Stage(i < jobStages.length ? jobStages[i] : null, Math.max(1, workers[i]), Math.max(1, queueSize));
+			if (!stages.isEmpty()) {
+				stages.get(stages.size() - 1).next = stage;
+			}
+			stages.add(stage);
+		}
+		this.startTime = System.currentTimeMillis();
+		for (Stage stage : stages) {
+			stage.workers.forEach(Thread::start);
+		}
+	}
+
+	/**
+	 * Submits a video. The call blocks, while the queue in front of the first stage is full.
+	 *
+	 * @param videoFile - The mp4 file
+	 * @throws InterruptedException - In case of the calling thread was interrupted while waiting
+	 */
+
+	public void submit(File videoFile) throws InterruptedException {
+		if (closed) {
+			throw new IllegalStateException("Pipeline is closed.");
+		}
+		stages.get(0).put(new ObjectDetectionJob(videoFile, outputDir));
+	}
+
+	/**
+	 * Processes a job in a stage. Failures stay within the job: Any exception - and any error - is stored in the
+	 * failedMsg of its result, so the worker goes on with the next job.
+	 */
+
+	private void process(Stage stage, ObjectDetectionJob job) {
+		ObjectDetectionJobResult result = job.getResult();
+		if (stage.jobStage == null) {
+			try {
+				output.accept(result);
+			} catch (Throwable e) {
+				log.warn("Output of {} failed:", result.getVideoFile(), e);
+			}
+			return;
+		}
+
+		if (stage.jobStage.ordinal() == 0) {
+			log.info("Process started for {}", result.getVideoFile().getName());
+			result.startProcessingTime();
+		}
+		if (result.getFailedMsg().isEmpty()) {
+			try {
+				job.processStage(stage.jobStage);
+			} catch (Throwable e) {
+				log.warn("Processing of {} failed:", result.getVideoFile(), e);
+				result.setFailedMsg("Exception: " + e);
+			}
+		}
+		if (stage.next.jobStage == null) {
+			result.endProcessingTime();
+			if (!result.getFailedMsg().isEmpty()) {
+				log.warn(result.getFailedMsg());
+			}
+		}
+	}
+
+	/**
+	 * Returns the statistics of all stages in the order of the pipeline.
+	 *
+	 * @return The statistics
+	 */
+
+	public List<PipelineStageStatistics> getStatistics() {
+		List<PipelineStageStatistics> statistics = new ArrayList<>();
+		for (Stage stage : stages) {
+			statistics.add(stage.statistics);
+		}
+		return statistics;
+	}
+
+	/**
+	 * Writes the statistics of all stages and the occupancy of their workers to the log.
+	 */
+
+	public void logStatistics() {
+		long elapsedTime = System.currentTimeMillis() - startTime;
+		for (PipelineStageStatistics statistics : getStatistics()) {
+			log.info("Pipeline stage {}, occupancy {}%", statistics, Math.round(statistics.getOccupancy(elapsedTime) * 100));
+		}
+	}
+
+	/**
+	 * Waits until all submitted jobs have passed the pipeline and stops the workers.
+	 */
+
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			stages.get(0).put(END_OF_JOBS);
+			for (Stage stage : stages) {
+				for (Thread worker : stage.workers) {
+					worker.join();
+				}
+			}
+		} catch (InterruptedException e) {
+			for (Stage stage : stages) {
+				stage.workers.forEach(Thread::interrupt);
+			}
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
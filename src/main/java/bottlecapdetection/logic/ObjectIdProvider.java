@@ -1,8 +1,10 @@
 package bottlecapdetection.logic;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * This class is a provider for atomic job ids.
- * It started by job id 1 and increments them by 1.
+ * It started by job id 1 and increments them by 1. The ids are unique, even if several jobs run in parallel.
  * 
  * @author Alexander Bchel
  *
@@ -10,7 +12,7 @@ package bottlecapdetection.logic;
 
 public class ObjectIdProvider {
 
-	private static int lastId = 0;
+	private static final AtomicInteger lastId = new AtomicInteger(0);
 	
 	/**
 	 * A static method for returning a new job id.
@@ -19,8 +21,7 @@ public class ObjectIdProvider {
 	 */
 	
 	public static int getNewId() {
-		lastId++;
-		return lastId;
+		return lastId.incrementAndGet();
 	}
 	
 }
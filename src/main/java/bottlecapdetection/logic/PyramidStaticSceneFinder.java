@@ -0,0 +1,235 @@
+package bottlecapdetection.logic;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.bytedeco.javacv.FrameGrabber.Exception;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.bytedeco.opencv.global.opencv_core.*;
+
+import bottlecapdetection.Constants;
+import bottlecapdetection.exceptions.MatException;
+import bottlecapdetection.model.StaticSceneResult;
+import bottlecapdetection.model.VideoFrame;
+
+/**
+ * This class determines the static scene by a coarse-to-fine search.
+ *
+ * In a coarse pass just every k-th frame of the second and third quarter is decoded and compared
+ * on a strongly downscaled gray scale proxy. Each compared pair spans a segment of k frames.
+ * The segments with the lowest motion are refined afterwards: Their frames are compared
+ * pairwise at full frame rate and full resolution. The static scene is selected by the same rule as
+ * by the StaticSceneFinder, just over the refined ranges: In ascending order of the indices each pair
+ * with a smaller difference than all pairs before is an improvement, the median of the improvements
+ * is the static scene. So with all segments refined, both return the same static scene.
+ *
+ * @author Alexander Buechel
+ *
+ */
+
+public class PyramidStaticSceneFinder {
+
+	private static final Logger log = LoggerFactory.getLogger(PyramidStaticSceneFinder.class);
+
+	/**
+	 * Finds the static scene with the settings defined in Constants.
+	 *
+	 * @param filePath - The absolute file path to a mp4 file
+	 * @return The static scene
+	 * @throws MatException - In case of invalid data structures.
+	 * @throws Exception - in case of grabFrameExceptions, type: org.bytedeco.javacv.FrameGrabber.Exception
+	 * @throws FileNotFoundException - in case of file was not found
+	 */
+
+	public static StaticSceneResult find(String filePath) throws MatException, Exception, FileNotFoundException {
+		return find(filePath, Constants.STATICSCENE_PYRAMID_STRIDE, Constants.STATICSCENE_PYRAMID_SCALE, Constants.STATICSCENE_PYRAMID_SEGMENTS);
+	}
+
+	/**
+	 * Finds the static scene by a coarse pass and a refinement of the best segments.
+	 *
+	 * @param filePath - The absolute file path to a mp4 file
+	 * @param stride - Just every k-th frame is compared in the coarse pass
+	 * @param proxyScale - Resolution of the coarse pass in 1/n
+	 * @param segmentCnt - Number of segments to refine
+	 * @return The static scene
+	 * @throws MatException - In case of invalid data structures.
+	 * @throws Exception - in case of grabFrameExceptions, type: org.bytedeco.javacv.FrameGrabber.Exception
+	 * @throws FileNotFoundException - in case of file was not found
+	 */
+
+	public static StaticSceneResult find(String filePath, int stride, int proxyScale, int segmentCnt) throws MatException, Exception, FileNotFoundException {
+
+		// Coarse pass
+		SegmentCollector collector = new SegmentCollector(proxyScale);
+		Mp4FileLoader.streamMP4File(filePath, collector, -1, -1, stride);
+		List<int[]> segments = collector.getSegments();
+		if (segments.isEmpty()) {
+			throw new MatException("Could not compare enough frames to find a static scene.");
+		}
+
+		// Take the segments with the lowest motion, neighboring segments are refined together
+		List<int[]> bestSegments = new ArrayList<>(segments);
+		bestSegments.sort(Comparator.comparingInt((int[] s) -> s[2]).thenComparingInt(s -> s[0]));
+		bestSegments = new ArrayList<>(bestSegments.subList(0, Math.min(segmentCnt, bestSegments.size())));
+		bestSegments.sort(Comparator.comparingInt(s -> s[0]));
+
+		List<int[]> ranges = new ArrayList<>();
+		for (int[] segment : bestSegments) {
+			int[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+			if (last != null && segment[0] <= last[1]) {
+				last[1] = Math.max(last[1], segment[1]);
+			} else {
+				ranges.add(new int[] {segment[0], segment[1]});
+			}
+		}
+
+		// Refinement at full frame rate and resolution
+		PairRefiner refiner = new PairRefiner();
+		for (int[] range : ranges) {
+			log.debug("Refine static scene search in range idx {} to {}.", range[0], range[1]);
+			Mp4FileLoader.streamMP4File(filePath, refiner, range[0], range[1], 1);
+		}
+		if (refiner.getBestIdx() < 0) {
+			throw new MatException("Could not refine the static scene search.");
+		}
+
+		int bestIdx = refiner.getBestIdx();
+		log.info("Found best static scene at idx {}. [Coarse pass over {} segments with stride {}, refined {} frame ranges]", bestIdx, segments.size(), stride, ranges.size());
+
+		Mat staticScene = Mp4FileLoader.loadFrame(filePath, bestIdx);
+		if (staticScene == null) {
+			throw new MatException("Could not load static scene at idx " + bestIdx + ".");
+		}
+		return new StaticSceneResult(bestIdx, staticScene);
+	}
+
+	/**
+	 * Counts the number of differing pixels of two gray scale images.
+	 */
+
+	private static int countDifferences(Mat gray1, Mat gray2) {
+		Mat diff = MatPool.acquire(gray1.rows(), gray1.cols(), gray1.type());
+		absdiff(gray1, gray2, diff);
+		int nonZeroCnt = countNonZero(diff);
+		MatPool.release(diff);
+		return nonZeroCnt;
+	}
+
+	/**
+	 * Compares each streamed frame with its predecessor and stores the segment [prevIdx, idx, difference].
+	 */
+
+	private static class SegmentCollector implements FrameConsumer {
+
+		private int proxyScale;
+		private int prevIdx = -1;
+		private Mat prevProxy = null;
+		private List<int[]> segments = new ArrayList<>();
+
+		SegmentCollector(int proxyScale) {
+			this.proxyScale = Math.max(1, proxyScale);
+		}
+
+		@Override
+		public void start(int firstIdx, int lastIdx, int totalFrameCnt) throws MatException {
+			if (totalFrameCnt < Constants.STATICSCENE_MIN_NR_OF_IMG) {
+				throw new MatException("We expect at least " + Constants.STATICSCENE_MIN_NR_OF_IMG + " Mat-Objects.");
+			}
+		}
+
+		@Override
+		public boolean accept(VideoFrame videoFrame) throws MatException {
+			if (prevProxy != null) {
+				segments.add(new int[] {prevIdx, videoFrame.getFrameIdx(), countDifferences(prevProxy, videoFrame.getProxy())});
+				MatPool.release(prevProxy);
+			}
+			prevIdx = videoFrame.getFrameIdx();
+			prevProxy = videoFrame.getProxy();
+			return true;
+		}
+
+		@Override
+		public int getProxyScale() {
+			return proxyScale;
+		}
+
+		@Override
+		public boolean needsColorFrames() {
+			return false;
+		}
+
+		List<int[]> getSegments() {
+			if (prevProxy != null) {
+				MatPool.release(prevProxy);
+				prevProxy = null;
+			}
+			return segments;
+		}
+	}
+
+	/**
+	 * Compares neighboring frames in full resolution and stores the first frame of each pair, which has
+	 * a smaller difference than all pairs before. It may be used for several ranges one after another
+	 * in ascending order.
+	 */
+
+	private static class PairRefiner implements FrameConsumer {
+
+		private int prevIdx = -1;
+		private Mat prevProxy = null;
+		private List<Integer> bestIndices = new ArrayList<>();
+		private int bestNonZeroCnt = Integer.MAX_VALUE;
+
+		@Override
+		public void start(int firstIdx, int lastIdx, int totalFrameCnt) throws MatException {
+			if (prevProxy != null) {
+				MatPool.release(prevProxy);
+				prevProxy = null;
+			}
+		}
+
+		@Override
+		public boolean accept(VideoFrame videoFrame) throws MatException {
+			if (prevProxy != null) {
+				int nonZeroCnt = countDifferences(prevProxy, videoFrame.getProxy());
+				if (nonZeroCnt < bestNonZeroCnt) {
+					bestNonZeroCnt = nonZeroCnt;
+					bestIndices.add(prevIdx);
+				}
+				MatPool.release(prevProxy);
+			}
+			prevIdx = videoFrame.getFrameIdx();
+			prevProxy = videoFrame.getProxy();
+			return true;
+		}
+
+		@Override
+		public int getProxyScale() {
+			return 1;
+		}
+
+		@Override
+		public boolean needsColorFrames() {
+			return false;
+		}
+
+		/**
+		 * @return The median of the improvements, -1 if no pair was compared
+		 */
+
+		int getBestIdx() {
+			if (prevProxy != null) {
+				MatPool.release(prevProxy);
+				prevProxy = null;
+			}
+			return bestIndices.isEmpty() ? -1 : bestIndices.get(bestIndices.size() / 2);
+		}
+	}
+
+}
@@ -0,0 +1,253 @@
+package bottlecapdetection.logic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Rect;
+import org.bytedeco.opencv.opencv_core.Size;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import bottlecapdetection.Constants;
+import bottlecapdetection.model.ROIResult;
+import bottlecapdetection.model.RoiCacheEntry;
+
+import static org.bytedeco.opencv.global.opencv_imgproc.*;
+
+/**
+ * This class caches the ROI rectangles of fixed camera rigs.
+ *
+ * The static scenes of videos from the same rig look almost the same. Each static scene is reduced to a
+ * fingerprint: a gray scale thumbnail of FINGERPRINT_WIDTH x FINGERPRINT_HEIGHT pixels. If a cached fingerprint
+ * differs in less than Constants.ROI_CACHE_MAX_DISTANCE gray levels on average, its ROI rectangle is validated
+ * by a coarse ROI search on a strongly downscaled image and reused. Otherwise the ROI is extracted in full and
+ * the cache is updated.
+ *
+ * The cache holds at most maxEntries rigs. The least recently used one is evicted first. The entries are
+ * stored as json file, when a rig is added or evicted, and loaded again by the next run. The order of use
+ * is just stored along with the next change.
+ *
+ * The cache is shared by parallel jobs. Just the access to the entries is synchronized, the fingerprint,
+ * the validation and the extraction of the ROI run outside of the lock. If a parallel job has added the
+ * same rig meanwhile, its entry is kept and no second one is added.
+ *
+ * @author Alexander Buechel
+ *
+ */
+
+public class RoiCache {
+
+	private static final Logger log = LoggerFactory.getLogger(RoiCache.class);
+
+	private static final int FINGERPRINT_WIDTH = 32;
+	private static final int FINGERPRINT_HEIGHT = 18;
+	private static final int VALIDATION_PYRAMID_LEVELS = 2;
+
+	private static final Map<File, RoiCache> instances = new HashMap<>();
+
+	private final File cacheFile;
+	private final int maxEntries;
+	private final List<RoiCacheEntry> entries = new ArrayList<>(); // least recently used first
+
+	private int hitCnt = 0;
+	private int missCnt = 0;
+
+	/**
+	 * Returns the cache of the given file with Constants.ROI_CACHE_MAX_ENTRIES. It is shared by all jobs.
+	 *
+	 * @param cacheFile - The json file of the cache
+	 * @return The cache
+	 */
+
+	public static synchronized RoiCache getInstance(File cacheFile) {
+		return instances.computeIfAbsent(cacheFile.getAbsoluteFile(), file -> new RoiCache(file, Constants.ROI_CACHE_MAX_ENTRIES));
+	}
+
+	/**
+	 * Creates a cache and loads the entries of the given file, if it exists.
+	 *
+	 * @param cacheFile - The json file of the cache
+	 * @param maxEntries - Max. number of cached rigs
+	 */
+
+	public RoiCache(File cacheFile, int maxEntries) {
+		this.cacheFile = cacheFile;
+		this.maxEntries = Math.max(1, maxEntries);
+		load();
+	}
+
+	/**
+	 * Returns the ROI of a static scene. A cached ROI rectangle is reused, if the static scene matches a
+	 * cached rig and the rectangle passes the validation. Otherwise Logic.extractROI() is called and the
+	 * result is cached. A reused ROI does not contain a binary image.
+	 *
+	 * @param staticScene - The static scene (color image)
+	 * @return the subimage representing the ROI.
+	 */
+
+	public ROIResult extractROI(Mat staticScene) {
+		int[] fingerprint = calculateFingerprint(staticScene);
+
+		RoiCacheEntry entry;
+		synchronized (this) {
+			entry = findEntry(staticScene, fingerprint);
+		}
+		if (entry != null && isValid(staticScene, entry)) {
+			synchronized (this) {
+				hitCnt++;
+				if (entries.remove(entry)) {
+					entries.add(entry);
+				}
+			}
+			log.debug("Reused cached ROI ({}, {}, {}, {}).", entry.getX(), entry.getY(), entry.getWidth(), entry.getHeight());
+			Rect rect = new Rect(entry.getX(), entry.getY(), entry.getWidth(), entry.getHeight());
+			return new ROIResult(new Mat(staticScene, rect), null, entry.isTookCompleteImage(), rect);
+		}
+
+		ROIResult roiResult = Logic.extractROI(staticScene);
+		Rect rect = roiResult.getRoiRect();
+		RoiCacheEntry newEntry = new RoiCacheEntry(staticScene.cols(), staticScene.rows(), fingerprint, rect.x(), rect.y(), rect.width(), rect.height(), roiResult.isTookCompleteImage());
+		synchronized (this) {
+			missCnt++;
+			if (entry != null) {
+				entries.remove(entry);
+			}
+			RoiCacheEntry addedEntry = findEntry(staticScene, fingerprint);
+			if (addedEntry != null) {
+				entries.remove(addedEntry);
+				entries.add(addedEntry);
+			} else {
+				entries.add(newEntry);
+				while (entries.size() > maxEntries) {
+					entries.remove(0);
+				}
+			}
+			save();
+		}
+		return roiResult;
+	}
+
+	public synchronized int getHitCnt() {
+		return hitCnt;
+	}
+
+	public synchronized int getMissCnt() {
+		return missCnt;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Finds the most similar cached rig with the same image size within the max. distance.
+	 */
+
+	private RoiCacheEntry findEntry(Mat staticScene, int[] fingerprint) {
+		RoiCacheEntry bestEntry = null;
+		double bestDistance = Double.MAX_VALUE;
+		for (RoiCacheEntry entry : entries) {
+			if (entry.getImageWidth() != staticScene.cols() || entry.getImageHeight() != staticScene.rows() || entry.getFingerprint() == null || entry.getFingerprint().length != fingerprint.length) {
+				continue;
+			}
+			long sum = 0;
+			for (int i = 0; i < fingerprint.length; i++) {
+				sum += Math.abs(fingerprint[i] - entry.getFingerprint()[i]);
+			}
+			double distance = (double)sum / fingerprint.length;
+			if (distance < bestDistance) {
+				bestDistance = distance;
+				bestEntry = entry;
+			}
+		}
+		return bestDistance <= Constants.ROI_CACHE_MAX_DISTANCE ? bestEntry : null;
+	}
+
+	/**
+	 * Validates a cached ROI rectangle: A coarse ROI search must find nearly the same rectangle.
+	 */
+
+	private boolean isValid(Mat staticScene, RoiCacheEntry entry) {
+		ROIResult coarse = Logic.extractROI(staticScene, VALIDATION_PYRAMID_LEVELS);
+		Rect rect = coarse.getRoiRect();
+		coarse.getRoiSubImage().deallocate();
+		if (coarse.getBinaryImage() != null) {
+			coarse.getBinaryImage().deallocate();
+		}
+		if (coarse.isTookCompleteImage() != entry.isTookCompleteImage()) {
+			return false;
+		}
+		int tolerance = Constants.ROI_CACHE_VALIDATION_TOLERANCE;
+		return Math.abs(rect.x() - entry.getX()) <= tolerance && Math.abs(rect.y() - entry.getY()) <= tolerance
+				&& Math.abs(rect.x() + rect.width() - entry.getX() - entry.getWidth()) <= tolerance
+				&& Math.abs(rect.y() + rect.height() - entry.getY() - entry.getHeight()) <= tolerance;
+	}
+
+	/**
+	 * Calculates the fingerprint of a static scene: a small gray scale thumbnail.
+	 *
+	 * @param staticScene - The static scene (color image)
+	 * @return The gray values of the thumbnail
+	 */
+
+	public static int[] calculateFingerprint(Mat staticScene) {
+		Mat matGray = new Mat();
+		cvtColor(staticScene, matGray, COLOR_BGR2GRAY);
+		Mat thumbnail = new Mat();
+		resize(matGray, thumbnail, new Size(FINGERPRINT_WIDTH, FINGERPRINT_HEIGHT), 0, 0, INTER_AREA);
+
+		int[] fingerprint = new int[FINGERPRINT_WIDTH * FINGERPRINT_HEIGHT];
+		byte[] row = new byte[FINGERPRINT_WIDTH];
+		for (int y = 0; y < FINGERPRINT_HEIGHT; y++) {
+			BytePointer pointer = thumbnail.ptr(y);
+			pointer.get(row, 0, FINGERPRINT_WIDTH);
+			for (int x = 0; x < FINGERPRINT_WIDTH; x++) {
+				fingerprint[y * FINGERPRINT_WIDTH + x] = row[x] & 0xFF;
+			}
+		}
+		matGray.deallocate();
+		thumbnail.deallocate();
+		return fingerprint;
+	}
+
+	private void load() {
+		if (!cacheFile.exists()) {
+			return;
+		}
+		try (Reader reader = Files.newBufferedReader(cacheFile.toPath(), StandardCharsets.UTF_8)) {
+			RoiCacheEntry[] loaded = new Gson().fromJson(reader, RoiCacheEntry[].class);
+			if (loaded != null) {
+				entries.addAll(Arrays.asList(loaded));
+			}
+			while (entries.size() > maxEntries) {
+				entries.remove(0);
+			}
+			log.debug("Loaded {} cached ROIs from {}.", entries.size(), cacheFile);
+		} catch (IOException | RuntimeException e) {
+			log.warn("Could not load ROI cache {}: {}", cacheFile, e.getMessage());
+		}
+	}
+
+	private void save() {
+		try (Writer writer = Files.newBufferedWriter(cacheFile.toPath(), StandardCharsets.UTF_8)) {
+			new Gson().toJson(entries, new TypeToken<List<RoiCacheEntry>>() {}.getType(), writer);
+		} catch (IOException e) {
+			log.warn("Could not store ROI cache {}: {}", cacheFile, e.getMessage());
+		}
+	}
+
+}
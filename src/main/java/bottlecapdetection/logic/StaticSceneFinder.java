@@ -2,6 +2,8 @@ package bottlecapdetection.logic;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.bytedeco.opencv.opencv_core.Mat;
 import org.slf4j.Logger;
@@ -40,12 +42,31 @@ public class StaticSceneFinder {
 	 * the smallest difference. This is the point, where we expect the static scene (because 
 	 * neighboring images, without any motion etc. in it, do not change).
 	 * 
+	 * The differences of the neighboring images are calculated in parallel by the common fork-join pool.
+	 * 
 	 * @param matObjects - A list of null entries and Mat Objects.
 	 * @return - The Mat object corresponding to the static scene
 	 * @throws MatException - In case of invalid data structures.
 	 */
 	
 	public static StaticSceneResult find(List<Mat> matObjects) throws MatException {
+		return find(matObjects, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Same as find(matObjects), but the differences of the neighboring images are calculated by the given pool.
+	 * 
+	 * The index range is split into chunks of at least Constants.STATICSCENE_PARALLEL_CHUNK_SIZE frame pairs. Each chunk
+	 * converts its frames to gray scale just once and stores the number of differing pixels per pair. Afterwards the
+	 * best index is selected sequentially, so the result does not depend on the parallelism.
+	 * 
+	 * @param matObjects - A list of null entries and Mat Objects.
+	 * @param pool - The pool calculating the differences
+	 * @return - The Mat object corresponding to the static scene
+	 * @throws MatException - In case of invalid data structures.
+	 */
+	
+	public static StaticSceneResult find(List<Mat> matObjects, ForkJoinPool pool) throws MatException {
 		if (matObjects == null || matObjects.isEmpty()) {
 			throw new MatException("matObjects equals null or is empty.");
 		}
@@ -76,27 +97,20 @@ public class StaticSceneFinder {
 		int bestNonZeroCnt = Integer.MAX_VALUE;
 		
 		List<Integer> bestIndices = new ArrayList<>();
+		
+		// nonZeroCnts[i] contains the difference of the frames IdxFirstQuarter + i and IdxFirstQuarter + i + 1
+		int[] nonZeroCnts = new int[Math.max(0, IdxThirdQuarter - 1 - IdxFirstQuarter)];
+		if (nonZeroCnts.length > 0) {
+			pool.invoke(new PairDifferenceTask(matObjects, IdxFirstQuarter, nonZeroCnts, 0, nonZeroCnts.length));
+		}
 
 		for (int idx = IdxFirstQuarter; idx < IdxThirdQuarter-1; idx++) {
-			Mat gray1 = new Mat();
-			cvtColor(matObjects.get(idx), gray1, COLOR_BGR2GRAY);
-			
-			Mat gray2 = new Mat();
-			cvtColor(matObjects.get(idx+1), gray2, COLOR_BGR2GRAY);
-			
-			Mat diff = new Mat();
-			absdiff(gray1, gray2, diff);
-			
-			int NonZeroCnt = countNonZero(diff);
+			int NonZeroCnt = nonZeroCnts[idx - IdxFirstQuarter];
 			if (NonZeroCnt < bestNonZeroCnt) {
 				bestIdxDiff = idx;
 				bestNonZeroCnt = NonZeroCnt;
 				bestIndices.add(idx);
 			}
-			
-			gray1.deallocate();
-			gray2.deallocate();
-			diff.deallocate();
 		}
 		
 		bestIdxDiff = bestIndices.get((int)(bestIndices.size() / 2)); //Take median
@@ -107,7 +121,7 @@ public class StaticSceneFinder {
 		for (int i = 0; i < matObjects.size(); i++) {
 			if (matObjects.get(i) != null) {
 				if (i != bestIdxDiff) {
-					matObjects.get(i).deallocate();
+					MatPool.release(matObjects.get(i));
 				}
 			}
 		}
@@ -115,4 +129,56 @@ public class StaticSceneFinder {
 		return new StaticSceneResult(bestIdxDiff, matObjects.get(bestIdxDiff));
 	}
 	
+	/**
+	 * Calculates the number of differing pixels for the frame pairs [from, to) of a chunk. Larger chunks are split in halves.
+	 */
+	
+	private static class PairDifferenceTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final List<Mat> matObjects;
+		private final int firstIdx;
+		private final int[] nonZeroCnts;
+		private final int from;
+		private final int to;
+		
+		PairDifferenceTask(List<Mat> matObjects, int firstIdx, int[] nonZeroCnts, int from, int to) {
+			this.matObjects = matObjects;
+			this.firstIdx = firstIdx;
+			this.nonZeroCnts = nonZeroCnts;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected void compute() {
+			if (to - from > Constants.STATICSCENE_PARALLEL_CHUNK_SIZE) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new PairDifferenceTask(matObjects, firstIdx, nonZeroCnts, from, mid),
+						new PairDifferenceTask(matObjects, firstIdx, nonZeroCnts, mid, to));
+				return;
+			}
+			
+			// Each frame of the chunk is converted once, the gray image is reused for the next pair
+			Mat gray1 = toGray(matObjects.get(firstIdx + from));
+			for (int i = from; i < to; i++) {
+				Mat gray2 = toGray(matObjects.get(firstIdx + i + 1));
+				Mat diff = MatPool.acquire(gray1.rows(), gray1.cols(), gray1.type());
+				absdiff(gray1, gray2, diff);
+				nonZeroCnts[i] = countNonZero(diff);
+				MatPool.release(diff);
+				MatPool.release(gray1);
+				gray1 = gray2;
+			}
+			MatPool.release(gray1);
+		}
+		
+		private static Mat toGray(Mat mat) {
+			Mat gray = MatPool.acquire(mat.rows(), mat.cols(), CV_8UC1);
+			cvtColor(mat, gray, COLOR_BGR2GRAY);
+			return gray;
+		}
+	}
+	
 }
@@ -0,0 +1,266 @@
+package bottlecapdetection.logic;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.bytedeco.javacv.FrameGrabber.Exception;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.bytedeco.opencv.global.opencv_core.*;
+import static org.bytedeco.opencv.global.opencv_imgproc.THRESH_BINARY;
+import static org.bytedeco.opencv.global.opencv_imgproc.threshold;
+
+import bottlecapdetection.Constants;
+import bottlecapdetection.exceptions.MatException;
+import bottlecapdetection.model.StaticSceneResult;
+import bottlecapdetection.model.VideoFrame;
+
+/**
+ * This class determines the static scene while the video is decoded. It is the streaming
+ * counterpart of StaticSceneFinder.find().
+ *
+ * Each frame is compared with its predecessor as soon as it arrives. Instead of the complete
+ * list of frames, just the previous frame and the frames, which may still become the median
+ * of all improvements, are kept in memory. At most Constants.STATICSCENE_STREAM_MAX_CANDIDATES candidates are
+ * kept, a static scene beyond them is decoded again like in case of a proxy.
+ * 
+ * The comparison is done on gray scale proxies created by the decoder thread. With a proxy scale
+ * of 1 the result is the same as by StaticSceneFinder.find(). With a larger proxy scale the frames are
+ * compared on a downscaled proxy and no color frames are kept at all: Just the winning frame is
+ * decoded again in full resolution.
+ * 
+ * Optionally the search stops early: As soon as a given number of consecutive frame pairs stays below
+ * a motion threshold, the decoding is stopped and the middle frame of this stable run is taken.
+ * If no stable run is found, the median of all improvements is taken as usual.
+ *
+ * @author Alexander Buechel
+ *
+ */
+
+public class StreamingStaticSceneFinder implements FrameConsumer {
+
+	private static final Logger log = LoggerFactory.getLogger(StreamingStaticSceneFinder.class);
+
+	private String filePath;
+	private int proxyScale;
+	
+	private int firstIdx = 0;
+	private int lastIdx = 0;
+	private int totalFrameCnt = 0;
+
+	// Previous frame
+	private int prevIdx = -1;
+	private Mat prevFrame = null;
+	private Mat prevProxy = null;
+
+	// Difference of the last frame pair. It is committed as soon as we know, that it was not the last pair.
+	private int pendingIdx = -1;
+	private int pendingNonZeroCnt = 0;
+	private Mat pendingFrame = null;
+
+	// Early termination: number of stable pairs needed (0 = disabled), max. ratio of changed pixels
+	private int stableRunLength;
+	private double stableMaxMotion;
+	private int stableRunStartIdx = -1;
+	private int stableRunCnt = 0;
+	private int stableIdx = -1;
+
+	//Store best result
+	private int bestNonZeroCnt = Integer.MAX_VALUE;
+	private List<Integer> bestIndices = new ArrayList<>();
+	private TreeMap<Integer, Mat> candidates = new TreeMap<>();
+
+	public StreamingStaticSceneFinder(String filePath) {
+		this(filePath, Constants.STATICSCENE_PROXY_SCALE);
+	}
+	
+	public StreamingStaticSceneFinder(String filePath, int proxyScale) {
+		this(filePath, proxyScale, 0, 0.0);
+	}
+	
+	/**
+	 * Creates a finder, which stops as soon as stableRunLength consecutive frame pairs differ
+	 * in less than stableMaxMotion of their pixels.
+	 * 
+	 * @param filePath - The absolute file path to a mp4 file
+	 * @param proxyScale - Resolution of the compared proxies in 1/n
+	 * @param stableRunLength - Number of consecutive stable frame pairs, 0 disables the early termination
+	 * @param stableMaxMotion - Max. ratio [0..1] of changed pixels of a stable frame pair
+	 */
+	
+	public StreamingStaticSceneFinder(String filePath, int proxyScale, int stableRunLength, double stableMaxMotion) {
+		this.filePath = filePath;
+		this.proxyScale = Math.max(1, proxyScale);
+		this.stableRunLength = Math.max(0, stableRunLength);
+		this.stableMaxMotion = stableMaxMotion;
+	}
+	
+	@Override
+	public int getProxyScale() {
+		return proxyScale;
+	}
+	
+	@Override
+	public boolean needsColorFrames() {
+		// In case of an early termination, the middle frame of the stable run is loaded again
+		return proxyScale == 1 && stableRunLength == 0;
+	}
+	
+	@Override
+	public void start(int firstIdx, int lastIdx, int totalFrameCnt) throws MatException {
+		if (totalFrameCnt < Constants.STATICSCENE_MIN_NR_OF_IMG) {
+			throw new MatException("We expect at least " + Constants.STATICSCENE_MIN_NR_OF_IMG + " Mat-Objects.");
+		}
+		this.firstIdx = firstIdx;
+		this.lastIdx = lastIdx;
+		this.totalFrameCnt = totalFrameCnt;
+	}
+
+	@Override
+	public boolean accept(VideoFrame videoFrame) throws MatException {
+		// The pair before the current one was not the last pair
+		if (pendingIdx >= 0) {
+			commit(pendingIdx, pendingNonZeroCnt, pendingFrame);
+			pendingIdx = -1;
+			pendingFrame = null;
+		}
+
+		if (prevProxy != null) {
+			Mat diff = MatPool.acquire(prevProxy.rows(), prevProxy.cols(), prevProxy.type());
+			absdiff(prevProxy, videoFrame.getProxy(), diff);
+			pendingIdx = prevIdx;
+			pendingNonZeroCnt = countNonZero(diff);
+			pendingFrame = prevFrame;
+			boolean stable = stableRunLength > 0 && isStable(diff);
+			MatPool.release(diff);
+			MatPool.release(prevProxy);
+			
+			if (stable) {
+				if (stableRunCnt == 0) {
+					stableRunStartIdx = prevIdx;
+				}
+				stableRunCnt++;
+			} else {
+				stableRunCnt = 0;
+			}
+		}
+
+		prevIdx = videoFrame.getFrameIdx();
+		prevFrame = videoFrame.getFrame();
+		prevProxy = videoFrame.getProxy();
+		
+		if (stableRunLength > 0 && stableRunCnt >= stableRunLength) {
+			// The run covers the frames stableRunStartIdx ... prevIdx, take the middle one and stop decoding
+			stableIdx = stableRunStartIdx + (prevIdx - stableRunStartIdx) / 2;
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Checks, if the ratio of changed pixels of a difference image is below the motion threshold.
+	 * Small differences up to Constants.STATICSCENE_STABLE_PIXEL_TOLERANCE are treated as noise.
+	 */
+	
+	private boolean isStable(Mat diff) {
+		Mat changed = MatPool.acquire(diff.rows(), diff.cols(), diff.type());
+		threshold(diff, changed, Constants.STATICSCENE_STABLE_PIXEL_TOLERANCE, 255, THRESH_BINARY);
+		double motion = (double)countNonZero(changed) / Math.max(1, diff.total());
+		MatPool.release(changed);
+		return motion <= stableMaxMotion;
+	}
+
+	/**
+	 * Stores the difference of a frame pair. Like in StaticSceneFinder.find() each improvement is
+	 * collected and the median of all improvements is taken at the end. The median position never
+	 * moves backwards, so all improvements in front of it can be freed immediately. If the max. number
+	 * of candidates is reached, the frame of the new improvement is freed: it is the farthest from the median.
+	 */
+
+	private void commit(int idx, int nonZeroCnt, Mat frame) {
+		if (nonZeroCnt < bestNonZeroCnt) {
+			bestNonZeroCnt = nonZeroCnt;
+			bestIndices.add(idx);
+
+			int medianIdx = bestIndices.get(bestIndices.size() / 2);
+			Iterator<Map.Entry<Integer, Mat>> it = candidates.headMap(medianIdx, false).entrySet().iterator();
+			while (it.hasNext()) {
+				MatPool.release(it.next().getValue());
+				it.remove();
+			}
+			
+			if (frame != null && candidates.size() < Constants.STATICSCENE_STREAM_MAX_CANDIDATES) {
+				candidates.put(idx, frame);
+			} else {
+				MatPool.release(frame);
+			}
+		} else {
+			MatPool.release(frame);
+		}
+	}
+	
+	/**
+	 * Returns the static scene after all frames were passed. All other frames are freed.
+	 * If the color frames were not kept, the static scene is loaded again from the video file.
+	 *
+	 * @return - The Mat object corresponding to the static scene
+	 * @throws MatException - In case no frame pair was compared.
+	 * @throws Exception - in case of grabFrameExceptions, type: org.bytedeco.javacv.FrameGrabber.Exception
+	 * @throws FileNotFoundException - in case of file was not found
+	 */
+
+	public StaticSceneResult getResult() throws MatException, Exception, FileNotFoundException {
+		// The last pair is never taken into account (same as in StaticSceneFinder.find())
+		MatPool.release(pendingFrame);
+		pendingFrame = null;
+		pendingIdx = -1;
+		MatPool.release(prevFrame);
+		MatPool.release(prevProxy);
+		prevFrame = null;
+		prevProxy = null;
+
+		if (stableIdx >= 0) {
+			for (Mat mat : candidates.values()) {
+				MatPool.release(mat);
+			}
+			candidates.clear();
+			
+			log.info("Found stable static scene at idx {}. [Stopped after {} stable frame pairs from idx {} to {} of total {} (staticScene at {}%)]", stableIdx, stableRunCnt, stableRunStartIdx, prevIdx, totalFrameCnt, ((int)(stableIdx*10000.0)/totalFrameCnt)/100.0);
+			Mat staticScene = Mp4FileLoader.loadFrame(filePath, stableIdx);
+			if (staticScene == null) {
+				throw new MatException("Could not load static scene at idx " + stableIdx + ".");
+			}
+			return new StaticSceneResult(stableIdx, staticScene);
+		}
+
+		if (bestIndices.isEmpty()) {
+			throw new MatException("Could not compare enough frames to find a static scene.");
+		}
+
+		int bestIdxDiff = bestIndices.get(bestIndices.size() / 2); //Take median
+
+		log.info("Found best static scene at idx {}. [Streamed from idx {} to {} of total {} with proxy scale 1/{} (staticScene at {}%)]", bestIdxDiff, firstIdx, lastIdx, totalFrameCnt, proxyScale, ((int)(bestIdxDiff*10000.0)/totalFrameCnt)/100.0);
+
+		Mat staticScene = candidates.remove(bestIdxDiff);
+		for (Mat mat : candidates.values()) {
+			MatPool.release(mat);
+		}
+		candidates.clear();
+		
+		if (staticScene == null) {
+			staticScene = Mp4FileLoader.loadFrame(filePath, bestIdxDiff);
+			if (staticScene == null) {
+				throw new MatException("Could not load static scene at idx " + bestIdxDiff + ".");
+			}
+		}
+
+		return new StaticSceneResult(bestIdxDiff, staticScene);
+	}
+
+}
@@ -0,0 +1,80 @@
+package bottlecapdetection.logic;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Rect;
+
+import bottlecapdetection.model.color.Colors;
+
+/**
+ * This class samples the colors of an object surface along a cross: the horizontal and the vertical
+ * center line of its bounding box, about 10 pixels each.
+ *
+ * The samples are read in bulk from the native image into reusable buffers. Each thread owns one sampler,
+ * which is reused for all objects and jobs of this thread.
+ *
+ * @author Alexander Buechel
+ *
+ */
+
+public class SurfaceColorSampler {
+
+	private static final ThreadLocal<SurfaceColorSampler> instances = ThreadLocal.withInitial(SurfaceColorSampler::new);
+
+	private final Colors colors = new Colors();
+	private byte[] row = new byte[0];
+	private final byte[] pixel = new byte[3];
+
+	/**
+	 * Returns the sampler of the current thread.
+	 *
+	 * @return The sampler
+	 */
+
+	public static SurfaceColorSampler get() {
+		return instances.get();
+	}
+
+	/**
+	 * Samples the colors along the center lines of the bounding box. The returned Colors are reused
+	 * by the next call of this thread.
+	 *
+	 * @param image - The color image (3 channels)
+	 * @param boundingBox - The bounding box inside the image
+	 * @return The sampled colors
+	 */
+
+	public Colors sample(Mat image, Rect boundingBox) {
+		colors.clear();
+		int width = boundingBox.width();
+		int height = boundingBox.height();
+		int stepX = Math.max(1, width / 10);
+		int stepY = Math.max(1, height / 10);
+
+		//Iterate left to right - line
+		if (row.length < width * 3) {
+			row = new byte[width * 3];
+		}
+		image.ptr(boundingBox.y() + height / 2, boundingBox.x()).get(row, 0, width * 3);
+		for (int x = 0; x < width; x = x + stepX) {
+			add(row, x * 3);
+		}
+
+		//Iterate top to bottom - line
+		int centerX = boundingBox.x() + width / 2;
+		for (int y = 0; y < height; y = y + stepY) {
+			image.ptr(boundingBox.y() + y, centerX).get(pixel, 0, 3);
+			add(pixel, 0);
+		}
+		return colors;
+	}
+
+	/**
+	 * Adds a pixel. The channels are taken in the order of the former sampling: red = channel 0,
+	 * green = channel 1, blue = channel 2.
+	 */
+
+	private void add(byte[] buffer, int offset) {
+		colors.add(buffer[offset] & 0xFF, buffer[offset + 1] & 0xFF, buffer[offset + 2] & 0xFF);
+	}
+
+}
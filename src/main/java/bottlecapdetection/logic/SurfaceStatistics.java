@@ -0,0 +1,108 @@
+package bottlecapdetection.logic;
+
+import org.bytedeco.javacpp.indexer.DoubleIndexer;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Rect;
+
+import static org.bytedeco.opencv.global.opencv_core.CV_64F;
+import static org.bytedeco.opencv.global.opencv_imgproc.integral2;
+
+/**
+ * This class provides the color statistics of arbitrary rectangles of an image in constant time.
+ *
+ * One integral image and one squared integral image are built over all color channels of the image.
+ * The sum and the sum of squares of any rectangle are read from four entries each, so the mean and the
+ * variance per channel are available for each object with the same cost, independent of its size and
+ * of the number of objects.
+ *
+ * The integral images stay in native memory, the entries are read by indexers. They are freed by close(),
+ * at the latest by the native memory scope of the stage.
+ *
+ * @author Alexander Buechel
+ *
+ */
+
+public class SurfaceStatistics implements AutoCloseable {
+
+	private final int channels;
+	private final Mat sum;
+	private final Mat sqSum;
+	private final DoubleIndexer sumIndexer;
+	private final DoubleIndexer sqSumIndexer;
+
+	/**
+	 * Builds the integral images of the given image.
+	 *
+	 * @param image - A color image (or gray scale image)
+	 */
+
+	public SurfaceStatistics(Mat image) {
+		this.sum = new Mat();
+		this.sqSum = new Mat();
+		integral2(image, sum, sqSum, CV_64F, CV_64F);
+
+		this.channels = sum.channels();
+		this.sumIndexer = sum.createIndexer();
+		this.sqSumIndexer = sqSum.createIndexer();
+	}
+
+	/**
+	 * Returns the mean value per channel inside the rectangle.
+	 *
+	 * @param rect - A rectangle inside the image
+	 * @return The means of all channels
+	 */
+
+	public double[] getMean(Rect rect) {
+		double area = Math.max(1, rect.area());
+		double[] mean = new double[channels];
+		for (int c = 0; c < channels; c++) {
+			mean[c] = getSum(sumIndexer, rect, c) / area;
+		}
+		return mean;
+	}
+
+	/**
+	 * Returns the standard deviation per channel inside the rectangle.
+	 *
+	 * @param rect - A rectangle inside the image
+	 * @return The standard deviations of all channels
+	 */
+
+	public double[] getStdDev(Rect rect) {
+		double area = Math.max(1, rect.area());
+		double[] stdDev = new double[channels];
+		for (int c = 0; c < channels; c++) {
+			double mean = getSum(sumIndexer, rect, c) / area;
+			double variance = getSum(sqSumIndexer, rect, c) / area - mean * mean;
+			stdDev[c] = Math.sqrt(Math.max(0, variance));
+		}
+		return stdDev;
+	}
+
+	/**
+	 * Reads the sum of a channel inside the rectangle from an integral image.
+	 */
+
+	private double getSum(DoubleIndexer integralImage, Rect rect, int channel) {
+		int x1 = rect.x();
+		int y1 = rect.y();
+		int x2 = rect.x() + rect.width();
+		int y2 = rect.y() + rect.height();
+		return integralImage.get(y2, x2, channel) - integralImage.get(y1, x2, channel)
+				- integralImage.get(y2, x1, channel) + integralImage.get(y1, x1, channel);
+	}
+
+	/**
+	 * Frees the integral images.
+	 */
+
+	@Override
+	public void close() {
+		sumIndexer.release();
+		sqSumIndexer.release();
+		sum.deallocate();
+		sqSum.deallocate();
+	}
+
+}
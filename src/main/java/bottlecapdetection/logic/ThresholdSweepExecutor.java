@@ -0,0 +1,78 @@
+package bottlecapdetection.logic;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bottlecapdetection.Constants;
+
+/**
+ * This class provides the thread pools for the parallel threshold sweep of the object localization.
+ *
+ * The pools are created on first use and shared by all jobs. Threshold and findContours() hardly use the
+ * thread pool of OpenCV, so the sweep runs on all cores by default (see Constants.ANALYSIS_SWEEP_THREADS) and
+ * each sweep task restricts OpenCV to a single thread. This setting is per thread, so it does not affect
+ * other threads. A larger number of sweep threads than cores is limited to the cores.
+ *
+ * @author Alexander Buechel
+ *
+ */
+
+public class ThresholdSweepExecutor {
+
+	private static final Logger log = LoggerFactory.getLogger(ThresholdSweepExecutor.class);
+
+	private static final Map<Integer, ExecutorService> executors = new HashMap<>();
+
+	private static final int sweepThreads = limitSweepThreads(Constants.ANALYSIS_SWEEP_THREADS, Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * Returns the number of sweep threads: Constants.ANALYSIS_SWEEP_THREADS, at most the number of cores.
+	 *
+	 * @return The number of threads (>= 1)
+	 */
+
+	public static int getSweepThreads() {
+		return sweepThreads;
+	}
+
+	/**
+	 * Limits the requested sweep threads, so sweep threads x OpenCV threads (1 per sweep task) do not exceed the cores.
+	 */
+
+	private static int limitSweepThreads(int requested, int cores) {
+		if (requested > cores) {
+			log.warn("{} sweep threads requested, but just {} cores are available: Using {} sweep threads.", requested, cores, cores);
+			return cores;
+		}
+		return Math.max(1, requested);
+	}
+
+	/**
+	 * Returns the shared pool with the given number of threads.
+	 *
+	 * @param threads - Number of threads (> 1)
+	 * @return The pool
+	 */
+
+	public static synchronized ExecutorService getExecutor(int threads) {
+		ExecutorService executor = executors.get(threads);
+		if (executor == null) {
+			AtomicInteger threadCnt = new AtomicInteger(0);
+			executor = Executors.newFixedThreadPool(threads, runnable -> {
+				Thread thread = new Thread(runnable, "sweep-" + threadCnt.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+			executors.put(threads, executor);
+			log.debug("Created threshold sweep pool with {} threads.", threads);
+		}
+		return executor;
+	}
+
+}
@@ -0,0 +1,317 @@
+package bottlecapdetection.logic;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bottlecapdetection.Constants;
+import bottlecapdetection.model.ObjectDetectionJobResult;
+
+/**
+ * This class watches a directory for new mp4 files and processes them by the ObjectDetectionPipeline.
+ * The results are written into the result directory like in batch mode (csv file and image).
+ *
+ * The WatchService just tells, that a file was created or changed. A file is processed, as soon as its size
+ * and modification time did not change for Constants.WATCH_STABLE_TIME, so files are not read while they
+ * are still written. At most Constants.WATCH_MAX_FILES files are in the pipeline at the same time, further
+ * stable files wait in the directory.
+ *
+ * Each processed file is appended to the ledger Constants.WATCH_LEDGER_FILE in the result directory
+ * (size, modification time, status and name). At start the ledger is read and all mp4 files of the directory,
+ * which are not in the ledger with the same size and modification time, are processed. So a restart neither
+ * processes finished files again nor misses files created in the meantime.
+ *
+ * @author Alexander Buechel
+ *
+ */
+
+public class WatchFolder implements AutoCloseable {
+
+	private static final Logger log = LoggerFactory.getLogger(WatchFolder.class);
+
+	private final File watchDir;
+	private final File outputDir;
+	private final long stableTime;	// in [ms]
+	private final long pollInterval;	// in [ms]
+	private final Semaphore filePermits;
+
+	// Files of the ledger, files waiting to become stable and files in the pipeline, all by name
+	private final Map<String, String> ledger = new HashMap<>();
+	private final Map<String, Candidate> candidates = new TreeMap<>();
+	private final Set<String> submitted = new HashSet<>();
+	private final AtomicInteger processedCnt = new AtomicInteger(0);
+
+	private WatchService watchService = null;
+	private ObjectDetectionPipeline pipeline = null;
+	private Thread watcher = null;
+	private volatile boolean closed = false;
+
+	/**
+	 * A file waiting to become stable: its size and modification time at the last check.
+	 */
+
+	private static class Candidate {
+		private long size = -1;
+		private long lastModified = -1;
+		private long lastChange = 0;	// in [ms]
+	}
+
+	/**
+	 * Creates a watch folder with the settings of Constants.WATCH_*.
+	 *
+	 * @param watchDir - The directory to watch
+	 * @param outputDir - The result directory, it contains the ledger as well
+	 */
+
+	public WatchFolder(File watchDir, File outputDir) {
+		this(watchDir, outputDir, Constants.WATCH_MAX_FILES, Constants.WATCH_STABLE_TIME, Constants.WATCH_POLL_INTERVAL);
+	}
+
+	/**
+	 * @param watchDir - The directory to watch
+	 * @param outputDir - The result directory, it contains the ledger as well
+	 * @param maxFiles - Max. number of files in the pipeline at the same time
+	 * @param stableTime - Time in [ms] a file must not change before it is processed
+	 * @param pollInterval - Time in [ms] between two checks of the waiting files
+	 */
+
+	public WatchFolder(File watchDir, File outputDir, int maxFiles, long stableTime, long pollInterval) {
+		this.watchDir = watchDir;
+		this.outputDir = outputDir;
+		this.filePermits = new Semaphore(Math.max(1, maxFiles));
+		this.stableTime = stableTime;
+		this.pollInterval = Math.max(1, pollInterval);
+	}
+
+	/**
+	 * Reads the ledger, registers the directory and starts watching in a background thread.
+	 *
+	 * @throws IOException - In case the directory could not be watched
+	 */
+
+	public void start() throws IOException {
+		loadLedger();
+		watchService = FileSystems.getDefault().newWatchService();
+		watchDir.toPath().register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+		pipeline = new ObjectDetectionPipeline(outputDir, this::finish);
+
+		// Files created while the watch folder was not running
+		scanDirectory();
+
+		watcher = new Thread(this::watch, "watch-folder");
+		watcher.start();
+		log.info("Watching {} for mp4 files ({} files in ledger).", watchDir, ledger.size());
+	}
+
+	/**
+	 * Collects the changed files and submits the stable ones, until the watch folder is closed.
+	 */
+
+	private void watch() {
+		try {
+			while (!closed) {
+				WatchKey key = watchService.poll(pollInterval, TimeUnit.MILLISECONDS);
+				if (key != null) {
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind() == OVERFLOW) {
+							scanDirectory();
+						} else {
+							addCandidate(watchDir.toPath().resolve((Path)event.context()).toFile());
+						}
+					}
+					key.reset();
+				}
+				submitStableFiles();
+			}
+		} catch (ClosedWatchServiceException e) {
+			log.debug("Watch service closed.");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void scanDirectory() {
+		File[] files = watchDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				addCandidate(file);
+			}
+		}
+	}
+
+	private void addCandidate(File file) {
+		if (file.getName().toLowerCase().endsWith(".mp4")) {
+			synchronized (candidates) {
+				candidates.computeIfAbsent(file.getName(), name -> new Candidate());
+			}
+		}
+	}
+
+	/**
+	 * Submits all files, which did not change for the stable time and which are not in the ledger yet.
+	 */
+
+	private void submitStableFiles() throws InterruptedException {
+		long now = System.currentTimeMillis();
+		synchronized (candidates) {
+			Iterator<Map.Entry<String, Candidate>> it = candidates.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, Candidate> entry = it.next();
+				File file = new File(watchDir, entry.getKey());
+				Candidate candidate = entry.getValue();
+				if (!file.isFile()) {
+					it.remove();
+					continue;
+				}
+
+				long size = file.length();
+				long lastModified = file.lastModified();
+				if (size != candidate.size || lastModified != candidate.lastModified) {
+					candidate.size = size;
+					candidate.lastModified = lastModified;
+					candidate.lastChange = now;
+					continue;
+				}
+				if (isSubmitted(file.getName()) || isInLedger(file.getName(), size, lastModified)) {
+					it.remove();
+					continue;
+				}
+				if (size == 0 || now - candidate.lastChange < stableTime || !filePermits.tryAcquire()) {
+					continue;
+				}
+
+				it.remove();
+				synchronized (submitted) {
+					submitted.add(file.getName());
+				}
+				log.info("Submit stable file {} ({} bytes).", file.getName(), size);
+				pipeline.submit(file);
+			}
+		}
+	}
+
+	/**
+	 * Writes the results of a processed file and adds it to the ledger (called by the output stage of the pipeline).
+	 */
+
+	private void finish(ObjectDetectionJobResult result) {
+		try {
+			File file = result.getVideoFile();
+			ObjectDetectionBatch.writeResults(result);
+			appendToLedger(file, result.getFailedMsg().isEmpty() ? "ok" : "failed");
+			processedCnt.incrementAndGet();
+		} finally {
+			synchronized (submitted) {
+				submitted.remove(result.getVideoFile().getName());
+			}
+			filePermits.release();
+		}
+	}
+
+	private boolean isSubmitted(String name) {
+		synchronized (submitted) {
+			return submitted.contains(name);
+		}
+	}
+
+	private static String getLedgerKey(long size, long lastModified) {
+		return size + "," + lastModified;
+	}
+
+	private boolean isInLedger(String name, long size, long lastModified) {
+		synchronized (ledger) {
+			return getLedgerKey(size, lastModified).equals(ledger.get(name));
+		}
+	}
+
+	/**
+	 * Reads the ledger. Each line is: size,lastModified,status,name
+	 */
+
+	private void loadLedger() throws IOException {
+		File ledgerFile = new File(outputDir, Constants.WATCH_LEDGER_FILE);
+		if (!ledgerFile.exists()) {
+			return;
+		}
+		synchronized (ledger) {
+			for (String line : Files.readAllLines(ledgerFile.toPath(), StandardCharsets.UTF_8)) {
+				String[] parts = line.split(",", 4);
+				if (parts.length == 4) {
+					ledger.put(parts[3], parts[0] + "," + parts[1]);
+				}
+			}
+		}
+	}
+
+	private void appendToLedger(File file, String status) {
+		synchronized (ledger) {
+			try (FileWriter fileWriter = new FileWriter(new File(outputDir, Constants.WATCH_LEDGER_FILE), true)) {
+				// The size and modification time after processing: a file changed afterwards is processed again
+				String key = getLedgerKey(file.length(), file.lastModified());
+				fileWriter.write(key + "," + status + "," + file.getName() + "\r\n");
+				ledger.put(file.getName(), key);
+			} catch (IOException e) {
+				log.warn("Could not write ledger:", e);
+			}
+		}
+	}
+
+	/**
+	 * @return The number of files processed since start
+	 */
+
+	public int getProcessedCnt() {
+		return processedCnt.get();
+	}
+
+	/**
+	 * Stops watching and waits for the files in the pipeline.
+	 */
+
+	@Override
+	public void close() {
+		closed = true;
+		try {
+			if (watcher != null) {
+				watcher.join();
+			}
+			if (watchService != null) {
+				watchService.close();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			log.debug("Could not close watch service: {}", e.getMessage());
+		}
+		if (pipeline != null) {
+			pipeline.close();
+			pipeline.logStatistics();
+		}
+		log.info("Stopped watching {} after {} files.", watchDir, processedCnt.get());
+	}
+
+}
@@ -1,5 +1,9 @@
 package bottlecapdetection.model;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bytedeco.javacpp.Pointer;
 import org.bytedeco.opencv.opencv_core.Mat;
 import org.bytedeco.opencv.opencv_core.MatVector;
 import org.bytedeco.opencv.opencv_core.Point2f;
@@ -61,6 +65,10 @@ public class DetectedObject {
 	@Setter private float greenDiff = Float.MAX_VALUE;
 	@Setter private float blueDiff = Float.MAX_VALUE;
 	
+	//Color statistics inside the bounding box of the convex hull (per channel)
+	@Setter @Getter private double[] surfaceMean;
+	@Setter @Getter private double[] surfaceStdDev;
+	
 	//Max side length
 	@Getter @Setter private double maxSideLength;
 	
@@ -165,6 +173,58 @@ public class DetectedObject {
 		return false;
 	}
 	
+	/**
+	 * Alternative to hasUniStructuredSurface() based on the color statistics of the whole surface:
+	 * The standard deviation of each channel must be below Constants.SURFACE_MAX_STDDEV.
+	 * 
+	 * @return true, if the surface has a low variance; false, if it has not or no statistics were calculated.
+	 */
+	
+	public boolean hasLowSurfaceVariance() {
+		if (surfaceStdDev == null) {
+			return false;
+		}
+		for (double stdDev : surfaceStdDev) {
+			if (stdDev >= Constants.SURFACE_MAX_STDDEV) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Frees the contours, the convex hull and the approximated polygon of this object.
+	 * It is used for objects, which are eliminated and not part of the result.
+	 */
+	
+	public void releaseMats() {
+		for (Mat mat : new Mat[] {contours, convexHull, polyPoints}) {
+			if (mat != null && !mat.isNull()) {
+				mat.deallocate();
+			}
+		}
+		contours = null;
+		convexHull = null;
+		polyPoints = null;
+	}
+	
+	/**
+	 * Returns all native objects held by this object: the Mats, the bounding box, the rotated
+	 * rectangle and the center point.
+	 * 
+	 * @return The native objects, which are set
+	 */
+	
+	public List<Pointer> getNativeObjects() {
+		List<Pointer> pointers = new ArrayList<>();
+		for (Pointer pointer : new Pointer[] {contours, convexHull, polyPoints, boundingBox, minAreaRect, centerPoint}) {
+			if (pointer != null) {
+				pointers.add(pointer);
+			}
+		}
+		return pointers;
+	}
+	
 	/**
 	 * Static method for creating a new DetectedObject instance.
 	 * 
@@ -0,0 +1,46 @@
+package bottlecapdetection.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import lombok.Getter;
+
+/**
+ * The response of the detection server for a single video. It is sent as json:
+ * 
+ * video : Name of the mp4 file
+ * failedMsg : Empty, if the detection was successful
+ * staticSceneIdx : Index of the static scene
+ * counts : The counted objects of each class
+ * jsonCounts : The counts of the labeled json file, if available
+ * csv : The lines of the csv file (without line breaks)
+ * duration : Processing time of the job in [ms]
+ * 
+ * @author Alexander Buechel
+ *
+ */
+
+@Getter
+public class DetectionResponse {
+
+	private String video;
+	private String failedMsg;
+	private int staticSceneIdx = -1;
+	private ClassificationResult counts = null;
+	private ClassificationResult jsonCounts = null;
+	private List<String> csv = new ArrayList<>();
+	private long duration;
+	
+	public DetectionResponse(ObjectDetectionJobResult result) {
+		this.video = result.getVideoFile().getName();
+		this.failedMsg = result.getFailedMsg();
+		this.duration = result.getDuration();
+		if (result.getClassificationResult() != null) {
+			this.staticSceneIdx = result.getObjectDetectionResult().getStaticSceneIdx();
+			this.counts = result.getClassificationResult();
+			this.jsonCounts = result.getJsonResult();
+			this.csv = result.getCsvLines();
+		}
+	}
+	
+}
@@ -0,0 +1,18 @@
+package bottlecapdetection.model;
+
+/**
+ * This enum defines the stages of an object detection job, which are processed one after another:
+ * 
+ * STATIC_SCENE : The video is decoded and the static scene is selected (decoding runs in its own thread)
+ * ROI : The ROI is determined on the static scene
+ * LOCALIZATION : The objects are localized and classified on the ROI and counted
+ * 
+ * @author Alexander Buechel
+ *
+ */
+
+public enum JobStage {
+	STATIC_SCENE,
+	ROI,
+	LOCALIZATION;
+}
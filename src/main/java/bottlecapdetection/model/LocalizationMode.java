@@ -0,0 +1,16 @@
+package bottlecapdetection.model;
+
+/**
+ * This enum defines the different strategies to select the threshold for the object localization:
+ * 
+ * THRESHOLD_SWEEP : The ROI is thresholded and the contours are found for each threshold
+ * COMPONENT_TREE : The useful objects of all thresholds are estimated by a component tree in one pass, the contours are found just for the selected threshold
+ * 
+ * @author Alexander Buechel
+ *
+ */
+
+public enum LocalizationMode {
+	THRESHOLD_SWEEP,
+	COMPONENT_TREE;
+}
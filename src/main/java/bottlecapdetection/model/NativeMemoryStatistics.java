@@ -0,0 +1,47 @@
+package bottlecapdetection.model;
+
+import lombok.Getter;
+
+/**
+ * The native memory statistics of a processing stage, summed up over all scopes of this stage.
+ *
+ * allocatedBytes : Bytes of all native objects created in the stage (Mat buffers and JavaCPP structures)
+ * retainedBytes : Bytes of the native objects, which were explicitly retained as result of the stage
+ * collectedBytes : Bytes of the native objects, which were still alive at stage exit and freed by the scope
+ * physicalGrowth : Growth of the physical memory of the process from stage entry to stage exit
+ *
+ * @author Alexander Buechel
+ *
+ */
+
+@Getter
+public class NativeMemoryStatistics {
+
+	private final String stage;
+	private int scopeCnt = 0;
+	private long objectCnt = 0;
+	private long allocatedBytes = 0;
+	private long retainedBytes = 0;
+	private long collectedBytes = 0;
+	private long physicalGrowth = 0;
+
+	public NativeMemoryStatistics(String stage) {
+		this.stage = stage;
+	}
+
+	public synchronized void add(long objectCnt, long allocatedBytes, long retainedBytes, long collectedBytes, long physicalGrowth) {
+		this.scopeCnt++;
+		this.objectCnt += objectCnt;
+		this.allocatedBytes += allocatedBytes;
+		this.retainedBytes += retainedBytes;
+		this.collectedBytes += collectedBytes;
+		this.physicalGrowth += physicalGrowth;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return stage + ": " + scopeCnt + " scopes, " + objectCnt + " native objects, " + allocatedBytes + " bytes allocated, "
+				+ retainedBytes + " bytes retained, " + collectedBytes + " bytes freed by scope, " + physicalGrowth + " bytes physical growth";
+	}
+
+}
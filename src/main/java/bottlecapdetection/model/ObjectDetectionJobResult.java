@@ -6,6 +6,8 @@ import static org.bytedeco.opencv.global.opencv_imgproc.*;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import org.bytedeco.opencv.opencv_core.Mat;
 import org.bytedeco.opencv.opencv_core.Point;
 import org.bytedeco.opencv.opencv_core.Point2f;
@@ -37,7 +39,7 @@ public class ObjectDetectionJobResult {
 	
 	@ToString.Exclude @Getter private long startProcessing = 0L;	// in [ms]
 	@ToString.Exclude @Getter private long endProcessing = 0L;		// in [ms]
-	@ToString.Exclude private long duration = 0L; 					// in [ms]
+	@ToString.Exclude @Getter private long duration = 0L; 					// in [ms]
 	@Setter @Getter private String failedMsg = "";
 	@Getter private File videoFile;
 	@Getter private File outputDir;
@@ -95,6 +97,17 @@ public class ObjectDetectionJobResult {
         imwrite(outputDir + "/" + videoFile.getName().replaceAll(".mp4", ".png"), roi);
 	}
 	
+	/**
+	 * Frees the native memory of the results. The counts are still available, but the
+	 * result image can not be stored anymore.
+	 */
+	
+	public void release() {
+		if (objectDetectionResult != null) {
+			objectDetectionResult.release();
+		}
+	}
+	
 	/**
 	 * This method prints out the collected results.
 	 */
@@ -154,6 +167,22 @@ public class ObjectDetectionJobResult {
 		log.info("");
 	}
 	
+	/**
+	 * Returns the lines of the csv file: one line per counted object.
+	 * 
+	 * @return The csv lines without line breaks
+	 */
+	
+	public List<String> getCsvLines() {
+		List<String> lines = new ArrayList<>();
+		for (DetectedObject detObj : objectDetectionResult.getObjects()) {
+			if (detObj.getType() != ClassificationType.IGNORED_OBJECT && detObj.getType() != ClassificationType.INNER_OBJECT) {
+				lines.add(objectDetectionResult.getStaticSceneIdx() + "," + (int)detObj.centerX + "," + (int)detObj.centerY + ",'" + detObj.getLabel()+"'");
+			}
+		}
+		return lines;
+	}
+	
 	/**
 	 * Writes results into csv text file.
 	 */
@@ -163,10 +192,8 @@ public class ObjectDetectionJobResult {
 		String csvFilepath = outputDir + "/" + csvFilename;
 		try {
 			FileWriter fileWriter = new FileWriter(csvFilepath);
-			for (DetectedObject detObj : objectDetectionResult.getObjects()) {
-				if (detObj.getType() != ClassificationType.IGNORED_OBJECT && detObj.getType() != ClassificationType.INNER_OBJECT) {
-					fileWriter.write(objectDetectionResult.getStaticSceneIdx() + "," + (int)detObj.centerX + "," + (int)detObj.centerY + ",'" + detObj.getLabel()+"'\r\n");
-				}
+			for (String line : getCsvLines()) {
+				fileWriter.write(line + "\r\n");
 			}
 			fileWriter.flush();
 			log.info("Results are written to output file: {}", csvFilepath);
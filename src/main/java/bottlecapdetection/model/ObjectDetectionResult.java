@@ -3,6 +3,7 @@ package bottlecapdetection.model;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.bytedeco.javacpp.Pointer;
 import org.bytedeco.opencv.opencv_core.Mat;
 import org.bytedeco.opencv.opencv_core.MatVector;
 import lombok.Getter;
@@ -16,4 +17,23 @@ public class ObjectDetectionResult {
 	@Setter @Getter private double expectedBottleCapSize;
 	@Setter @Getter int staticSceneIdx;
 	
+	/**
+	 * Frees the ROI, the contours and the native objects of all detected objects.
+	 * The classification of the objects is still available afterwards.
+	 */
+	
+	public void release() {
+		if (roi != null) {
+			roi.deallocate();
+		}
+		if (contours != null) {
+			contours.deallocate();
+		}
+		for (DetectedObject detObj : objects) {
+			for (Pointer pointer : detObj.getNativeObjects()) {
+				pointer.deallocate();
+			}
+		}
+	}
+	
 }
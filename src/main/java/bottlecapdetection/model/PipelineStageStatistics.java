@@ -0,0 +1,66 @@
+package bottlecapdetection.model;
+
+import lombok.Getter;
+
+/**
+ * The statistics of a pipeline stage: the hand-off queue in front of the stage and the workers of the stage.
+ *
+ * queueDepth / busyWorkers : Current number of jobs waiting in the queue / being processed
+ * maxQueueDepth : Max. number of jobs waiting in the queue at the same time
+ * busyTime : Sum of the processing times of all jobs in [ms]
+ * occupancy : busyTime divided by the available worker time, 1.0 means all workers were busy all the time
+ *
+ * @author Alexander Buechel
+ *
+ */
+
+@Getter
+public class PipelineStageStatistics {
+
+	private final String stage;
+	private final int workers;
+	private final int queueCapacity;
+	private int queueDepth = 0;
+	private int maxQueueDepth = 0;
+	private int busyWorkers = 0;
+	private long processedCnt = 0;
+	private long busyTime = 0;	// in [ms]
+
+	public PipelineStageStatistics(String stage, int workers, int queueCapacity) {
+		this.stage = stage;
+		this.workers = workers;
+		this.queueCapacity = queueCapacity;
+	}
+
+	public synchronized void jobQueued(int queueDepth) {
+		this.queueDepth = queueDepth;
+		maxQueueDepth = Math.max(maxQueueDepth, queueDepth);
+	}
+
+	public synchronized void jobStarted(int queueDepth) {
+		this.queueDepth = queueDepth;
+		busyWorkers++;
+	}
+
+	public synchronized void jobFinished(long duration) {
+		busyWorkers--;
+		processedCnt++;
+		busyTime += duration;
+	}
+
+	/**
+	 * @param elapsedTime - Running time of the pipeline in [ms]
+	 * @return The occupancy of the workers in [0..1]
+	 */
+
+	public synchronized double getOccupancy(long elapsedTime) {
+		return elapsedTime <= 0 ? 0.0 : (double)busyTime / (elapsedTime * workers);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return stage + ": " + workers + " workers, " + processedCnt + " jobs, " + busyTime + " ms busy, queue depth "
+				+ queueDepth + " (max. " + maxQueueDepth + " of " + queueCapacity + "), " + busyWorkers + " busy workers";
+	}
+
+}
@@ -1,6 +1,7 @@
 package bottlecapdetection.model;
 
 import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Rect;
 
 import lombok.AllArgsConstructor;
 import lombok.Getter;
@@ -12,5 +13,6 @@ public class ROIResult {
 	@Getter @Setter Mat roiSubImage;
 	@Getter @Setter Mat binaryImage;
 	@Getter @Setter boolean tookCompleteImage = false;
+	@Getter @Setter Rect roiRect;
 	
 }
@@ -0,0 +1,27 @@
+package bottlecapdetection.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * A cached ROI of a camera rig: The fingerprint of the static scene and the ROI rectangle found for it.
+ * 
+ * @author Alexander Buechel
+ *
+ */
+
+@Setter @Getter @AllArgsConstructor @NoArgsConstructor
+public class RoiCacheEntry {
+
+	private int imageWidth;
+	private int imageHeight;
+	private int[] fingerprint;
+	private int x;
+	private int y;
+	private int width;
+	private int height;
+	private boolean tookCompleteImage;
+	
+}
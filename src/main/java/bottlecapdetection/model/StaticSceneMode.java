@@ -0,0 +1,20 @@
+package bottlecapdetection.model;
+
+/**
+ * This enum defines the different strategies to determine the static scene of a video:
+ * 
+ * EXHAUSTIVE : All frames of the search range are decoded into a list first, afterwards all neighboring frames are compared
+ * STREAMING : Frames are compared against their predecessor while decoding. Just a small window of frames is kept in memory
+ * EARLY_TERMINATION : Like STREAMING, but decoding stops after a run of frames without motion. The middle frame of this run is taken
+ * PYRAMID : A coarse pass on every n-th downscaled frame finds low-motion segments, which are refined at full frame rate and resolution
+ * 
+ * @author Alexander Buechel
+ *
+ */
+
+public enum StaticSceneMode {
+	EXHAUSTIVE,
+	STREAMING,
+	EARLY_TERMINATION,
+	PYRAMID;
+}
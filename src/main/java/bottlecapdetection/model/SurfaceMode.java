@@ -0,0 +1,16 @@
+package bottlecapdetection.model;
+
+/**
+ * This enum defines the different features to decide between bottle caps face up and face down:
+ * 
+ * COLOR_SAMPLES : The range of about 20 color samples along the center lines of the bounding box (hasUniStructuredSurface)
+ * INTEGRAL_STATISTICS : The standard deviation of all colors inside the bounding box of the convex hull, read from integral images (hasLowSurfaceVariance)
+ * 
+ * @author Alexander Buechel
+ *
+ */
+
+public enum SurfaceMode {
+	COLOR_SAMPLES,
+	INTEGRAL_STATISTICS;
+}
@@ -0,0 +1,16 @@
+package bottlecapdetection.model;
+
+import org.bytedeco.opencv.opencv_core.MatVector;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+
+@AllArgsConstructor
+public class ThresholdSweepResult {
+
+	@Getter @Setter MatVector contours;
+	@Getter @Setter int bestThreshold;
+	@Getter @Setter int objectCnt;
+	
+}
@@ -0,0 +1,35 @@
+package bottlecapdetection.model;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+
+import bottlecapdetection.logic.MatPool;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * A single decoded frame of a video together with its index in the video.
+ * 
+ * Depending on the needs of the consumer it contains the full resolution color frame,
+ * a downscaled gray scale proxy of it or both.
+ * 
+ * @author Alexander Buechel
+ *
+ */
+
+@AllArgsConstructor
+public class VideoFrame {
+
+	@Getter private int frameIdx;
+	@Getter private Mat frame;
+	@Getter private Mat proxy;
+	
+	/**
+	 * Releases the color frame and the proxy back to the MatPool.
+	 */
+	
+	public void deallocate() {
+		MatPool.release(frame);
+		MatPool.release(proxy);
+	}
+	
+}
@@ -1,16 +0,0 @@
-package bottlecapdetection.model.color;
-
-import lombok.AllArgsConstructor;
-import lombok.Getter;
-import lombok.Setter;
-import lombok.ToString;
-
-@AllArgsConstructor
-@ToString
-public class Color {
-
-	@Getter @Setter float red;
-	@Getter @Setter float green;
-	@Getter @Setter float blue;
-	
-}
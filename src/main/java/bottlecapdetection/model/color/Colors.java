@@ -1,12 +1,21 @@
 package bottlecapdetection.model.color;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.Arrays;
+
+/**
+ * This class collects sampled color values of an object surface in primitive buffers.
+ * The buffers grow on demand and are kept by clear(), so an instance can be reused for many objects.
+ * 
+ * @author Alexander Buechel
+ *
+ */
 
 public class Colors {
 
-	private List<Color> colors = new ArrayList<>();
+	private int[] reds = new int[32];
+	private int[] greens = new int[32];
+	private int[] blues = new int[32];
+	private int size = 0;
 	
 	/**
 	 * The following methods return the difference of red/green/blue color values.
@@ -15,46 +24,70 @@ public class Colors {
 	 */
 	
 	public float getRedDiff() {
-		List<Integer> reds = new ArrayList<>();
-		for (Color color : colors) {
-			reds.add((int)color.getRed());
-		}
-		Collections.sort(reds);
-		
-		if (reds.size() == 1) return reds.get(0);
-		if (reds.size() == 2) return reds.get(1) - reds.get(0);
-		if (reds.size() == 3) return reds.get(1);
-		return reds.get(reds.size() - 2) - reds.get(1);
+		return getDiff(reds, size);
 	}
 	
 	public float getGreenDiff() {
-		List<Integer> green = new ArrayList<>();
-		for (Color color : colors) {
-			green.add((int)color.getGreen());
-		}
-		Collections.sort(green);
-		
-		if (green.size() == 1) return green.get(0);
-		if (green.size() == 2) return green.get(1) - green.get(0);
-		if (green.size() == 3) return green.get(1);
-		return green.get(green.size() - 2) - green.get(1);
+		return getDiff(greens, size);
 	}
 	
 	public float getBlueDiff() {
-		List<Integer> blues = new ArrayList<>();
-		for (Color color : colors) {
-			blues.add((int)color.getBlue());
+		return getDiff(blues, size);
+	}
+	
+	public void add(int red, int green, int blue) {
+		if (size == reds.length) {
+			reds = Arrays.copyOf(reds, size * 2);
+			greens = Arrays.copyOf(greens, size * 2);
+			blues = Arrays.copyOf(blues, size * 2);
 		}
-		Collections.sort(blues);
-		
-		if (blues.size() == 1) return blues.get(0);
-		if (blues.size() == 2) return blues.get(1) - blues.get(0);
-		if (blues.size() == 3) return blues.get(1);
-		return blues.get(blues.size() - 2) - blues.get(1);
+		reds[size] = red;
+		greens[size] = green;
+		blues[size] = blue;
+		size++;
 	}
 	
-	public void add(Color color) {
-		colors.add(color);
+	public void clear() {
+		size = 0;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Returns the difference of the second largest and the second smallest value. For less than
+	 * four values: the value itself (1), the difference (2) or the median (3). The values are
+	 * not sorted, just the two smallest and the two largest ones are determined.
+	 */
+	
+	private static float getDiff(int[] values, int size) {
+		int min1 = Integer.MAX_VALUE;
+		int min2 = Integer.MAX_VALUE;
+		int max1 = Integer.MIN_VALUE;
+		int max2 = Integer.MIN_VALUE;
+		long sum = 0;
+		for (int i = 0; i < size; i++) {
+			int value = values[i];
+			sum += value;
+			if (value < min1) {
+				min2 = min1;
+				min1 = value;
+			} else if (value < min2) {
+				min2 = value;
+			}
+			if (value > max1) {
+				max2 = max1;
+				max1 = value;
+			} else if (value > max2) {
+				max2 = value;
+			}
+		}
+		
+		if (size == 1) return min1;
+		if (size == 2) return max1 - min1;
+		if (size == 3) return sum - min1 - max1;
+		return max2 - min2;
 	}
 	
 }
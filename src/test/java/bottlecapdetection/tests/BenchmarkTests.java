@@ -0,0 +1,249 @@
+package bottlecapdetection.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.MatVector;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.bytedeco.opencv.global.opencv_imgcodecs.imread;
+import static org.bytedeco.opencv.global.opencv_imgproc.*;
+
+import bottlecapdetection.Constants;
+import bottlecapdetection.logic.BottleCapSizeEstimator;
+import bottlecapdetection.logic.Logic;
+import bottlecapdetection.logic.MatPool;
+import bottlecapdetection.logic.Mp4FileLoader;
+import bottlecapdetection.logic.PyramidStaticSceneFinder;
+import bottlecapdetection.logic.StaticSceneFinder;
+import bottlecapdetection.model.BinaryResult;
+import bottlecapdetection.model.BottleCapSizeResult;
+import bottlecapdetection.model.DetectedObject;
+import bottlecapdetection.model.StaticSceneResult;
+import bottlecapdetection.model.ThresholdSweepResult;
+
+/**
+ * This class contains benchmarks comparing alternative implementations of the same processing step.
+ * The results are written to the log. By default generated test data is used, a real video can be
+ * given by -Dbenchmark.video=<path-to-mp4-file>.
+ * 
+ * @author Alexander Buechel
+ *
+ */
+
+public class BenchmarkTests {
+	
+	private static final Logger log = LoggerFactory.getLogger(BenchmarkTests.class);
+	
+	private static String getBenchmarkVideo() throws Exception {
+		String video = System.getProperty("benchmark.video");
+		if (video != null) {
+			return video;
+		}
+		return StaticSceneTests.createTestVideo("benchmark.mp4", 600, 250, 320);
+	}
+	
+	/**
+	 * Compares the exhaustive median-of-improvements search with the coarse-to-fine search.
+	 */
+	
+	@Test
+	public void staticSceneSearchBenchmark() throws Exception {
+		String filename = getBenchmarkVideo();
+		
+		long start = System.nanoTime();
+		List<Mat> matList = Mp4FileLoader.loadMP4File(filename);
+		StaticSceneResult exhaustive = StaticSceneFinder.find(matList);
+		long exhaustiveTime = (System.nanoTime() - start) / 1000000;
+		exhaustive.getStaticScene().deallocate();
+		
+		start = System.nanoTime();
+		StaticSceneResult pyramid = PyramidStaticSceneFinder.find(filename);
+		long pyramidTime = (System.nanoTime() - start) / 1000000;
+		
+		log.info("Static scene search: EXHAUSTIVE idx {} in {} ms, PYRAMID idx {} in {} ms", exhaustive.getStaticSceneIdx(), exhaustiveTime, pyramid.getStaticSceneIdx(), pyramidTime);
+		assertTrue(pyramid.getStaticScene() != null);
+	}
+	
+	/**
+	 * Measures the parallel static scene search with an increasing number of threads. Each run works
+	 * on its own copy of the frames, because the search frees all frames except the static scene.
+	 */
+	
+	@Test
+	public void parallelStaticSceneBenchmark() throws Exception {
+		List<Mat> matList = Mp4FileLoader.loadMP4File(getBenchmarkVideo());
+		int cores = Runtime.getRuntime().availableProcessors();
+		
+		long sequentialTime = 0;
+		int sequentialIdx = -1;
+		for (int parallelism = 1; parallelism <= cores; parallelism *= 2) {
+			List<Mat> copy = new ArrayList<>();
+			for (Mat mat : matList) {
+				copy.add(mat == null ? null : MatPool.copyOf(mat));
+			}
+			
+			ForkJoinPool pool = new ForkJoinPool(parallelism);
+			long start = System.nanoTime();
+			StaticSceneResult result = StaticSceneFinder.find(copy, pool);
+			long time = (System.nanoTime() - start) / 1000000;
+			pool.shutdown();
+			MatPool.release(result.getStaticScene());
+			
+			if (parallelism == 1) {
+				sequentialTime = time;
+				sequentialIdx = result.getStaticSceneIdx();
+			}
+			log.info("Parallel static scene search: {} threads, idx {} in {} ms (speedup {})", parallelism, result.getStaticSceneIdx(), time, time == 0 ? "-" : String.format("%.2f", (double)sequentialTime / time));
+			assertEquals(sequentialIdx, result.getStaticSceneIdx());
+		}
+		
+		for (Mat mat : matList) {
+			MatPool.release(mat);
+		}
+	}
+	
+	/**
+	 * Compares the threshold sweep of the object localization, which converts and blurs the ROI for each
+	 * threshold, with the sweep sharing the preprocessing over all thresholds and with the component tree.
+	 */
+	
+	@Test
+	public void thresholdSweepBenchmark() {
+		Mat roi = imread(new File(ImageTests.testResourcesPath + "/png/pic01_roi.png").getAbsolutePath());
+		int runs = 5;
+		
+		long start = System.nanoTime();
+		int legacyThreshold = 0;
+		long legacyContourCnt = 0;
+		for (int run = 0; run < runs; run++) {
+			int foundMostObjects = 0;
+			for (int threshold = 100; threshold <= 160; threshold += 2) {
+				BinaryResult binaryResult = Logic.toBinaryImage(roi, threshold);
+				MatVector contours = new MatVector();
+				findContours(binaryResult.getBinaryImage(), contours, new Mat(), RETR_LIST, CHAIN_APPROX_SIMPLE);
+				int usefulObjects = 0;
+				for (int idx = 0; idx < contours.size(); idx++) {
+					double areaSize = contourArea(contours.get(idx));
+					if (areaSize >= Constants.ANALYSIS_OBJECT_MINIMUM_AREA && areaSize <= Constants.ANALYSIS_OBJECT_MAXIMUM_AREA) {
+						usefulObjects++;
+					}
+				}
+				if (usefulObjects >= foundMostObjects) {
+					foundMostObjects = usefulObjects;
+					legacyThreshold = threshold;
+					legacyContourCnt = contours.size();
+				}
+			}
+		}
+		long legacyTime = (System.nanoTime() - start) / 1000000 / runs;
+		
+		start = System.nanoTime();
+		ThresholdSweepResult result = null;
+		for (int run = 0; run < runs; run++) {
+			result = Logic.findContoursWithMostObjects(roi);
+		}
+		long sharedTime = (System.nanoTime() - start) / 1000000 / runs;
+		
+		start = System.nanoTime();
+		for (int run = 0; run < runs; run++) {
+			Logic.findContoursByComponentTree(roi).getContours().deallocate();
+		}
+		long treeTime = (System.nanoTime() - start) / 1000000 / runs;
+		
+		log.info("Threshold sweep per ROI: separate preprocessing {} ms, shared preprocessing {} ms, component tree {} ms", legacyTime, sharedTime, treeTime);
+		assertEquals(legacyThreshold, result.getBestThreshold());
+		assertEquals(legacyContourCnt, result.getContours().size());
+	}
+	
+	/**
+	 * Compares the sliding window over all positions, which scans all objects for each position,
+	 * with the estimator based on sorted max sides and prefix sums. Both must give the same result.
+	 */
+	
+	@Test
+	public void bottleCapSizeBenchmark() {
+		Random random = new Random(42);
+		int windowSize = Constants.ANALYSIS_SLIDING_WINDOW_SIZE;
+		for (int objectCnt : new int[] {1, 2, 15, 100, 1000}) {
+			for (int maxSide : new int[] {200, 2000}) {
+				List<DetectedObject> objects = new ArrayList<>();
+				for (int i = 0; i < objectCnt; i++) {
+					DetectedObject o = DetectedObject.createInstance();
+					o.setMaxSideLength(random.nextInt(4) == 0 ? 20 + random.nextDouble() * maxSide : 80 + random.nextGaussian() * 5);
+					o.setInnerObject(random.nextBoolean());
+					o.setCircle(random.nextBoolean());
+					objects.add(o);
+				}
+				
+				long start = System.nanoTime();
+				double[] legacy = slidingWindowOverAllObjects(objects, windowSize);
+				long legacyTime = (System.nanoTime() - start) / 1000;
+				
+				start = System.nanoTime();
+				BottleCapSizeResult result = BottleCapSizeEstimator.estimate(objects, windowSize);
+				long estimatorTime = (System.nanoTime() - start) / 1000;
+				
+				log.info("Bottle cap size of {} objects (max side up to {}): scan all objects {} us, prefix sums {} us", objectCnt, maxSide, legacyTime, estimatorTime);
+				assertEquals(legacy[0], result.getAvgSize());
+				assertEquals((int)legacy[1], result.getBestPosSlidingWindow());
+			}
+		}
+	}
+	
+	/**
+	 * The sliding window, which scans all objects for each position. Returns the average side and the best position.
+	 */
+	
+	private static double[] slidingWindowOverAllObjects(List<DetectedObject> objects, int windowSize) {
+		int minValueOfRange = Integer.MAX_VALUE;
+		int maxValueOfRange = Integer.MIN_VALUE;
+		for (DetectedObject o : objects) {
+			minValueOfRange = Math.min(minValueOfRange, (int)o.getMaxSideLength());
+			maxValueOfRange = Math.max(maxValueOfRange, (int)o.getMaxSideLength());
+		}
+		double bestOptValue = Double.MAX_VALUE;
+		int mostObjectCount = 0;
+		double avgSide = 0.0;
+		int bestPos = minValueOfRange;
+		for (int pos = minValueOfRange; pos <= maxValueOfRange; pos++) {
+			int c = (int)(pos + 0.5 * windowSize);
+			List<Integer> maxSides = new ArrayList<>();
+			int weightedCnt = 0;
+			for (DetectedObject o : objects) {
+				if (o.getMaxSideLength() >= pos && o.getMaxSideLength() <= pos + windowSize) {
+					maxSides.add((int)o.getMaxSideLength());
+					if (o.isInnerObject() && o.isCircle()) {
+						weightedCnt++;
+					}
+				}
+			}
+			double optValue = 0.0;
+			for (Integer i : maxSides) {
+				optValue += Math.pow(Math.abs(c - i), 2);
+			}
+			optValue = optValue / maxSides.size();
+			if ((maxSides.size() + weightedCnt > mostObjectCount) || (maxSides.size() + weightedCnt == mostObjectCount && optValue <= bestOptValue)) {
+				bestOptValue = optValue;
+				bestPos = pos;
+				mostObjectCount = maxSides.size() + weightedCnt;
+				avgSide = 0.0;
+				for (Integer i : maxSides) {
+					avgSide += i;
+				}
+				avgSide = avgSide / maxSides.size();
+			}
+		}
+		return new double[] {avgSide, bestPos};
+	}
+	
+}
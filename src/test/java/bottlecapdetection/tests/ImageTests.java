@@ -1,6 +1,7 @@
 package bottlecapdetection.tests;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.File;
@@ -9,6 +10,7 @@ import java.util.List;
 import java.util.Random;
 
 import org.bytedeco.javacpp.Loader;
+import org.bytedeco.javacpp.indexer.DoubleIndexer;
 import org.bytedeco.javacpp.indexer.FloatRawIndexer;
 import org.bytedeco.javacpp.indexer.UByteBufferIndexer;
 import org.bytedeco.opencv.opencv_core.CvContour;
@@ -35,11 +37,19 @@ import static org.bytedeco.opencv.global.opencv_videoio.*;
 import static org.bytedeco.opencv.global.opencv_imgcodecs.*;
 import static org.bytedeco.opencv.global.opencv_highgui.*;
 
+import bottlecapdetection.Constants;
+import bottlecapdetection.logic.ComponentTreeEngine;
+import bottlecapdetection.logic.ContainmentGraph;
+import bottlecapdetection.logic.HistogramThresholdEngine;
 import bottlecapdetection.logic.Logic;
+import bottlecapdetection.logic.RoiCache;
+import bottlecapdetection.logic.SurfaceStatistics;
 import bottlecapdetection.model.BinaryResult;
 import bottlecapdetection.model.DetectedObject;
 import bottlecapdetection.model.ObjectDetectionResult;
 import bottlecapdetection.model.ROIResult;
+import bottlecapdetection.model.ThresholdSweepResult;
+import bottlecapdetection.model.color.Colors;
 
 /**
  * This class contains some unit tests for composed algorithms
@@ -121,6 +131,98 @@ public class ImageTests {
 	}
 
 	
+	/**
+	 * The histogram based threshold must be the same as thresholding the image for each candidate.
+	 */
+	@Test
+	public void histogramThresholdTest() {
+		File[] files = new File(testResourcesPath + "/png").listFiles((dir, name) -> name.endsWith(".png"));
+		assertTrue(files.length > 0);
+		for (File file : files) {
+			Mat matColor = imread(file.getAbsolutePath());
+			Mat matGray = new Mat();
+			cvtColor(matColor, matGray, COLOR_BGR2GRAY);
+			GaussianBlur(matGray, matGray, new Size(11, 11), 0);
+			
+			long[] aboveCnts = HistogramThresholdEngine.calculateAboveCounts(HistogramThresholdEngine.calculateHistogram(matGray));
+			int bestThreshold = -1;
+			long bestDiffValue = -1;
+			Mat last = new Mat();
+			threshold(matGray, last, 100, 255, THRESH_BINARY);
+			assertEquals(countNonZero(last), aboveCnts[100]);
+			for (int step = 105; step <= 150; step = step + 5) {
+				Mat result = new Mat();
+				threshold(matGray, result, step, 255, THRESH_BINARY);
+				assertEquals(countNonZero(result), aboveCnts[step]);
+				long compRes = Logic.compareImages(last, result);
+				last = result;
+				if (bestThreshold == -1 || compRes < bestDiffValue) {
+					bestDiffValue = compRes;
+					bestThreshold = step;
+				}
+			}
+			
+			assertEquals(bestThreshold, HistogramThresholdEngine.findBestThreshold(matGray), file.getName());
+		}
+	}
+	
+	/**
+	 * The parallel threshold sweep must select the same contours as the sequential one.
+	 */
+	@Test
+	public void parallelThresholdSweepTest() {
+		Mat roi = imread(new File(testResourcesPath + "/png/pic01_roi.png").getAbsolutePath());
+		
+		ThresholdSweepResult expected = Logic.findContoursWithMostObjects(roi, 1);
+		ThresholdSweepResult actual = Logic.findContoursWithMostObjects(roi, 4);
+		
+		assertEquals(expected.getBestThreshold(), actual.getBestThreshold());
+		assertEquals(expected.getObjectCnt(), actual.getObjectCnt());
+		assertEquals(expected.getContours().size(), actual.getContours().size());
+	}
+	
+	/**
+	 * The component tree estimates the number of useful objects for all thresholds in one pass. On all
+	 * test images the estimate must be close to the count based on the contours and the selected threshold
+	 * must yield as many useful objects as the threshold selected by the sweep. The area of a ring includes
+	 * its hole like contourArea(): just with the hole, the ring and the hole are both useful objects.
+	 */
+	@Test
+	public void componentTreeTest() {
+		File[] files = new File(testResourcesPath + "/png").listFiles((dir, name) -> name.endsWith(".png"));
+		assertTrue(files.length > 0);
+		for (File file : files) {
+			Mat matColor = imread(file.getAbsolutePath());
+			Mat roi = Logic.extractROI(matColor).getRoiSubImage();
+			Mat matGray = Logic.toBlurredGrayImage(roi);
+			
+			int[] estimated = ComponentTreeEngine.countUsefulObjects(matGray);
+			for (int threshold = 100; threshold <= 160; threshold += 2) {
+				Mat binaryMat = new Mat();
+				threshold(matGray, binaryMat, threshold, 255, THRESH_BINARY);
+				MatVector contours = new MatVector();
+				findContours(binaryMat, contours, new Mat(), RETR_LIST, CHAIN_APPROX_SIMPLE);
+				int usefulObjects = 0;
+				for (int idx = 0; idx < contours.size(); idx++) {
+					double areaSize = contourArea(contours.get(idx));
+					if (areaSize >= Constants.ANALYSIS_OBJECT_MINIMUM_AREA && areaSize <= Constants.ANALYSIS_OBJECT_MAXIMUM_AREA) {
+						usefulObjects++;
+					}
+				}
+				assertEquals(usefulObjects, estimated[threshold], 1, file.getName() + " at threshold " + threshold);
+			}
+			
+			ThresholdSweepResult sweep = Logic.findContoursWithMostObjects(roi, 1);
+			ThresholdSweepResult tree = Logic.findContoursByComponentTree(roi);
+			assertEquals(sweep.getObjectCnt(), tree.getObjectCnt(), file.getName());
+		}
+		
+		Mat ring = new Mat(200, 200, CV_8UC1, new Scalar(60));
+		circle(ring, new Point(100, 100), 20, new Scalar(200), FILLED, LINE_8, 0);
+		circle(ring, new Point(100, 100), 16, new Scalar(60), FILLED, LINE_8, 0);
+		assertEquals(2, ComponentTreeEngine.countUsefulObjects(ring)[128]);
+	}
+	
 	/**
 	 * Find and extract the ROI of an image.
 	 */
@@ -143,6 +245,203 @@ public class ImageTests {
 		assertTrue(colorMatSize.height() > roiSize.height());
 	}
 	
+	/**
+	 * The ROI search on a downscaled image must find the same rectangle as in full resolution within a few pixels.
+	 */
+	@Test
+	public void pyramidROITest() {
+		File[] files = new File(testResourcesPath + "/png").listFiles((dir, name) -> name.endsWith(".png"));
+		assertTrue(files.length > 0);
+		for (File file : files) {
+			Mat matColor = imread(file.getAbsolutePath());
+			Rect expected = Logic.extractROI(matColor, 0).getRoiRect();
+			Rect actual = Logic.extractROI(matColor, 1).getRoiRect();
+			
+			assertEquals(expected.x(), actual.x(), 4, file.getName());
+			assertEquals(expected.y(), actual.y(), 4, file.getName());
+			assertEquals(expected.br().x(), actual.br().x(), 4, file.getName());
+			assertEquals(expected.br().y(), actual.br().y(), 4, file.getName());
+		}
+	}
+	
+	/**
+	 * A known static scene reuses the cached ROI, also after loading the cache from its file.
+	 * Unknown scenes are extracted and evict the least recently used rig.
+	 */
+	@Test
+	public void roiCacheTest() {
+		File cacheFile = new File(StaticSceneTests.testOutputPath + "/roi-cache-test.json");
+		cacheFile.getParentFile().mkdirs();
+		cacheFile.delete();
+		Mat pic01 = imread(new File(testResourcesPath + "/png/pic01.png").getAbsolutePath());
+		Mat pic02 = imread(new File(testResourcesPath + "/png/pic02.png").getAbsolutePath());
+		Rect expected = Logic.extractROI(pic01).getRoiRect();
+		
+		RoiCache cache = new RoiCache(cacheFile, 1);
+		cache.extractROI(pic01);
+		Rect cached = cache.extractROI(pic01).getRoiRect();
+		assertEquals(1, cache.getMissCnt());
+		assertEquals(1, cache.getHitCnt());
+		assertEquals(expected.x(), cached.x());
+		assertEquals(expected.y(), cached.y());
+		assertEquals(expected.width(), cached.width());
+		assertEquals(expected.height(), cached.height());
+		
+		RoiCache loaded = new RoiCache(cacheFile, 1);
+		loaded.extractROI(pic01);
+		assertEquals(1, loaded.getHitCnt());
+		
+		loaded.extractROI(pic02);
+		loaded.extractROI(pic01);
+		assertEquals(2, loaded.getMissCnt());
+		assertEquals(1, loaded.size());
+	}
+	
+	/**
+	 * Parallel misses on the same rig must add just one entry.
+	 */
+	@Test
+	public void roiCacheParallelTest() throws Exception {
+		File cacheFile = new File(StaticSceneTests.testOutputPath + "/roi-cache-parallel-test.json");
+		cacheFile.getParentFile().mkdirs();
+		cacheFile.delete();
+		Mat pic01 = imread(new File(testResourcesPath + "/png/pic01.png").getAbsolutePath());
+		
+		RoiCache cache = new RoiCache(cacheFile, 4);
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			threads.add(new Thread(() -> cache.extractROI(pic01)));
+		}
+		threads.forEach(Thread::start);
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(4, cache.getHitCnt() + cache.getMissCnt());
+		assertEquals(1, cache.size());
+	}
+	
+	/**
+	 * The color differences must be the same as by sorting the values: the value itself (1), the difference (2),
+	 * the median (3) or the second largest minus the second smallest value.
+	 */
+	@Test
+	public void colorsDiffTest() {
+		Random random = new Random(42);
+		Colors colors = new Colors();
+		for (int n = 1; n <= 25; n++) {
+			colors.clear();
+			List<Integer> reds = new ArrayList<>();
+			for (int i = 0; i < n; i++) {
+				int red = random.nextInt(256);
+				reds.add(red);
+				colors.add(red, random.nextInt(256), random.nextInt(256));
+			}
+			java.util.Collections.sort(reds);
+			float expected;
+			if (n == 1) expected = reds.get(0);
+			else if (n == 2) expected = reds.get(1) - reds.get(0);
+			else if (n == 3) expected = reds.get(1);
+			else expected = reds.get(n - 2) - reds.get(1);
+			assertEquals(expected, colors.getRedDiff());
+		}
+	}
+	
+	/**
+	 * The relations of the containment graph must be the same as by checking all pairs of objects.
+	 * The objects are random rings: Each ring gets some smaller rings around its center.
+	 */
+	@Test
+	public void containmentGraphTest() {
+		Random random = new Random(42);
+		List<DetectedObject> objects = new ArrayList<>();
+		while (objects.size() < 500) {
+			int x = random.nextInt(2000);
+			int y = random.nextInt(2000);
+			int side = 20 + random.nextInt(100);
+			for (int ring = 0; ring < 1 + random.nextInt(3); ring++) {
+				int inset = ring * random.nextInt(side / 6 + 1);
+				DetectedObject o = DetectedObject.createInstance();
+				o.setBoundingBox(new Rect(x + inset, y + inset, side - 2 * inset, side - 2 * inset));
+				o.setAreaSize((side - 2 * inset) * (side - 2 * inset) * 0.8);
+				objects.add(o);
+			}
+		}
+		java.util.Collections.shuffle(objects, random);
+		
+		ContainmentGraph graph = new ContainmentGraph(objects);
+		int relationCnt = 0;
+		for (int i = 0; i < objects.size(); i++) {
+			List<Integer> parents = new ArrayList<>();
+			for (int j = 0; j < objects.size(); j++) {
+				if (i != j && objects.get(j).rectIsInObject(objects.get(i).getBoundingBox(), objects.get(i).getAreaSize())) {
+					parents.add(j);
+				}
+			}
+			assertEquals(parents, graph.getParents(i));
+			relationCnt += parents.size();
+		}
+		assertEquals(relationCnt, graph.getRelationCnt());
+		assertTrue(relationCnt > 0);
+	}
+	
+	/**
+	 * The selection of the largest objects must give exactly 15 objects (or all, if there are less) in their
+	 * original order: the largest area sizes, of equal area sizes the ones found first. Many area sizes occur
+	 * several times. Eliminated objects are released. Less than 1 object to keep is rejected.
+	 */
+	@Test
+	public void selectLargestObjectsTest() {
+		Random random = new Random(42);
+		for (int n : new int[] {0, 10, 15, 16, 40, 300}) {
+			List<DetectedObject> objects = new ArrayList<>();
+			for (int i = 0; i < n; i++) {
+				DetectedObject o = DetectedObject.createInstance();
+				o.setAreaSize(100 + random.nextInt(30) * 10);
+				o.setContours(new Mat(1, 1, CV_32SC2));
+				objects.add(o);
+			}
+			// A stable sort keeps the objects found first in front of equal area sizes
+			List<DetectedObject> largest = new ArrayList<>(objects);
+			largest.sort((o1, o2) -> Double.compare(o2.getAreaSize(), o1.getAreaSize()));
+			List<DetectedObject> expected = new ArrayList<>(objects);
+			expected.retainAll(largest.subList(0, Math.min(15, n)));
+			
+			List<DetectedObject> selected = Logic.selectLargestObjects(objects, 15);
+			assertEquals(Math.min(15, n), selected.size());
+			assertEquals(expected, selected);
+			for (DetectedObject o : objects) {
+				assertEquals(selected.contains(o), o.getContours() != null);
+			}
+		}
+		assertThrows(IllegalArgumentException.class, () -> Logic.selectLargestObjects(new ArrayList<>(), 0));
+	}
+	
+	/**
+	 * The statistics read from the integral images must match the ones of opencv meanStdDev().
+	 */
+	@Test
+	public void surfaceStatisticsTest() {
+		File resourcesDirectory = new File(testResourcesPath + "/png/pic01_roi.png");
+		Mat roi = imread(resourcesDirectory.getAbsolutePath());
+		SurfaceStatistics statistics = new SurfaceStatistics(roi);
+		
+		Rect[] rects = {new Rect(0, 0, roi.cols(), roi.rows()), new Rect(10, 20, 30, 40), new Rect(roi.cols() - 25, roi.rows() - 15, 25, 15)};
+		for (Rect rect : rects) {
+			Mat mean = new Mat();
+			Mat stdDev = new Mat();
+			meanStdDev(new Mat(roi, rect), mean, stdDev);
+			DoubleIndexer meanIndexer = mean.createIndexer();
+			DoubleIndexer stdDevIndexer = stdDev.createIndexer();
+			double[] means = statistics.getMean(rect);
+			double[] stdDevs = statistics.getStdDev(rect);
+			for (int c = 0; c < roi.channels(); c++) {
+				assertEquals(meanIndexer.get(c), means[c], 1e-6);
+				assertEquals(stdDevIndexer.get(c), stdDevs[c], 1e-3);
+			}
+		}
+		statistics.close();
+	}
+	
 	/**
 	 * Localization of objects in ROI and calculation of feature attributes.
 	 * This test checks the number of found objects and gives possibilities to
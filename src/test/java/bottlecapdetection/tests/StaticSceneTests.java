@@ -1,17 +1,33 @@
 package bottlecapdetection.tests;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.OpenCVFrameConverter;
 import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Point;
+import org.bytedeco.opencv.opencv_core.Scalar;
+
+import static org.bytedeco.opencv.global.opencv_core.*;
 import static org.bytedeco.opencv.global.opencv_imgcodecs.*;
+import static org.bytedeco.opencv.global.opencv_imgproc.*;
 import org.junit.jupiter.api.Test;
 
 import bottlecapdetection.logic.Mp4FileLoader;
+import bottlecapdetection.logic.PyramidStaticSceneFinder;
 import bottlecapdetection.logic.StaticSceneFinder;
+import bottlecapdetection.logic.StreamingStaticSceneFinder;
 import bottlecapdetection.model.StaticSceneResult;
 
 public class StaticSceneTests {
 
+	public static String testOutputPath = "target/testdata";
+	
 	@Test
 	public void findStaticSceneTest() throws Exception {
 		String filename = "C:\\test\\VideoPackage1_2\\CV20_video_100.mp4";
@@ -22,4 +38,172 @@ public class StaticSceneTests {
 		
 	}
 	
+	/**
+	 * The streaming finder must return the same static scene as the finder working on the complete list.
+	 */
+	
+	@Test
+	public void streamingStaticSceneTest() throws Exception {
+		String filename = createTestVideo("streaming.mp4", 200, 90, 110);
+		
+		List<Mat> matList = Mp4FileLoader.loadMP4File(filename);
+		StaticSceneResult expected = StaticSceneFinder.find(matList);
+		
+		StreamingStaticSceneFinder finder = new StreamingStaticSceneFinder(filename, 1);
+		Mp4FileLoader.streamMP4File(filename, finder);
+		StaticSceneResult actual = finder.getResult();
+		
+		assertEquals(expected.getStaticSceneIdx(), actual.getStaticSceneIdx());
+		assertEquals(0, countNonZero(diffGray(expected.getStaticScene(), actual.getStaticScene())));
+	}
+	
+	/**
+	 * The parallel search must return the same static scene for any parallelism as the default search.
+	 */
+	
+	@Test
+	public void parallelStaticSceneTest() throws Exception {
+		String filename = createTestVideo("parallel.mp4", 200, 90, 110);
+		
+		// Each search releases the frames except the static scene, so each one gets its own frames
+		StaticSceneResult expected = StaticSceneFinder.find(Mp4FileLoader.loadMP4File(filename));
+		
+		ForkJoinPool[] pools = {new ForkJoinPool(1), new ForkJoinPool(4)};
+		try {
+			for (ForkJoinPool pool : pools) {
+				StaticSceneResult actual = StaticSceneFinder.find(Mp4FileLoader.loadMP4File(filename), pool);
+				assertEquals(expected.getStaticSceneIdx(), actual.getStaticSceneIdx());
+				assertEquals(0, countNonZero(diffGray(expected.getStaticScene(), actual.getStaticScene())));
+			}
+		} finally {
+			for (ForkJoinPool pool : pools) {
+				pool.shutdown();
+			}
+		}
+	}
+	
+	/**
+	 * If all segments of the coarse pass are refined, the pyramid search must return the same static scene
+	 * as the exhaustive search.
+	 */
+	
+	@Test
+	public void pyramidStaticSceneTest() throws Exception {
+		String filename = createTestVideo("pyramid.mp4", 200, 90, 110);
+		
+		StaticSceneResult expected = StaticSceneFinder.find(Mp4FileLoader.loadMP4File(filename));
+		StaticSceneResult actual = PyramidStaticSceneFinder.find(filename, 10, 8, Integer.MAX_VALUE);
+		
+		assertEquals(expected.getStaticSceneIdx(), actual.getStaticSceneIdx());
+		assertEquals(0, countNonZero(diffGray(expected.getStaticScene(), actual.getStaticScene())));
+	}
+	
+	/**
+	 * With downscaled proxies the static scene is decoded again in full resolution.
+	 */
+	
+	@Test
+	public void proxyStaticSceneTest() throws Exception {
+		String filename = createTestVideo("proxy.mp4", 200, 90, 110);
+		
+		StreamingStaticSceneFinder finder = new StreamingStaticSceneFinder(filename, 4);
+		Mp4FileLoader.streamMP4File(filename, finder);
+		StaticSceneResult actual = finder.getResult();
+		
+		Mat expected = Mp4FileLoader.loadMP4File(filename).get(actual.getStaticSceneIdx());
+		assertEquals(320, actual.getStaticScene().cols());
+		assertEquals(240, actual.getStaticScene().rows());
+		assertEquals(0, countNonZero(diffGray(expected, actual.getStaticScene())));
+	}
+	
+	/**
+	 * The early termination stops within the static phase and takes the middle frame of the stable run.
+	 */
+	
+	@Test
+	public void earlyTerminationStaticSceneTest() throws Exception {
+		String filename = createTestVideo("stable.mp4", 200, 90, 130);
+		
+		StreamingStaticSceneFinder finder = new StreamingStaticSceneFinder(filename, 4, 10, 0.002);
+		Mp4FileLoader.streamMP4File(filename, finder);
+		StaticSceneResult actual = finder.getResult();
+		
+		assertEquals(95, actual.getStaticSceneIdx());
+		assertEquals(0, countNonZero(diffGray(Mp4FileLoader.loadMP4File(filename).get(95), actual.getStaticScene())));
+	}
+	
+	/**
+	 * Creates a small video with a moving rectangle. Between the frames staticFrom and staticTo
+	 * the rectangle does not move.
+	 */
+	
+	public static String createTestVideo(String name, int frameCnt, int staticFrom, int staticTo) throws Exception {
+		String filename = testOutputPath + "/" + name;
+		new File(filename).getParentFile().mkdirs();
+		
+		FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(filename, 320, 240);
+		recorder.setFormat("mp4");
+		recorder.setVideoCodec(avcodec.AV_CODEC_ID_MPEG4);
+		recorder.setVideoQuality(0);
+		recorder.setFrameRate(25);
+		recorder.start();
+		
+		OpenCVFrameConverter.ToMat converter = new OpenCVFrameConverter.ToMat();
+		for (int i = 0; i < frameCnt; i++) {
+			int pos = 4 * (i < staticFrom ? i : (i <= staticTo ? staticFrom : i - (staticTo - staticFrom)));
+			Mat frame = new Mat(240, 320, CV_8UC3, new Scalar(60, 60, 60, 0));
+			rectangle(frame, new Point(pos % 200, 40), new Point(pos % 200 + 120, 200), new Scalar(0, 200, 255, 0), FILLED, LINE_8, 0);
+			recorder.record(converter.convert(frame));
+			frame.deallocate();
+		}
+		recorder.stop();
+		recorder.release();
+		return filename;
+	}
+	
+	/**
+	 * Creates a video showing a test image of the resources. The image is still, except a small bar moving
+	 * along the top border in the first and the last quarter of the video.
+	 */
+	
+	public static String createImageVideo(String name, String image, int frameCnt) throws Exception {
+		String filename = testOutputPath + "/" + name;
+		new File(filename).getParentFile().mkdirs();
+		if (new File(filename).exists()) {
+			return filename;
+		}
+		Mat picture = imread(new File(ImageTests.testResourcesPath + "/png/" + image).getAbsolutePath());
+		
+		FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(filename, picture.cols(), picture.rows());
+		recorder.setFormat("mp4");
+		recorder.setVideoCodec(avcodec.AV_CODEC_ID_MPEG4);
+		recorder.setVideoQuality(0);
+		recorder.setFrameRate(25);
+		recorder.start();
+		
+		OpenCVFrameConverter.ToMat converter = new OpenCVFrameConverter.ToMat();
+		for (int i = 0; i < frameCnt; i++) {
+			Mat frame = picture.clone();
+			if (i < frameCnt / 4 || i >= frameCnt * 3 / 4) {
+				rectangle(frame, new Point(i * 20, 0), new Point(i * 20 + 100, 20), new Scalar(255, 255, 255, 0), FILLED, LINE_8, 0);
+			}
+			recorder.record(converter.convert(frame));
+			frame.deallocate();
+		}
+		recorder.stop();
+		recorder.release();
+		picture.deallocate();
+		return filename;
+	}
+	
+	private static Mat diffGray(Mat mat1, Mat mat2) {
+		Mat gray1 = new Mat();
+		Mat gray2 = new Mat();
+		Mat diff = new Mat();
+		cvtColor(mat1, gray1, COLOR_BGR2GRAY);
+		cvtColor(mat2, gray2, COLOR_BGR2GRAY);
+		absdiff(gray1, gray2, diff);
+		return diff;
+	}
+	
 }
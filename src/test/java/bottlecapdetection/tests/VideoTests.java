@@ -1,16 +1,55 @@
 package bottlecapdetection.tests;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.bytedeco.opencv.global.opencv_core.*;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.OpenCVFrameConverter;
 import org.bytedeco.opencv.opencv_core.Mat;
 import org.junit.jupiter.api.Test;
 
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import bottlecapdetection.Constants;
+import bottlecapdetection.exceptions.MatException;
+import bottlecapdetection.logic.DetectionServer;
+import bottlecapdetection.logic.FrameConsumer;
+import bottlecapdetection.logic.MatPool;
 import bottlecapdetection.logic.Mp4FileLoader;
+import bottlecapdetection.logic.NativeMemoryScope;
+import bottlecapdetection.logic.ObjectDetectionBatch;
+import bottlecapdetection.logic.ObjectDetectionExecutor;
+import bottlecapdetection.logic.ObjectDetectionPipeline;
+import bottlecapdetection.logic.WatchFolder;
+import bottlecapdetection.logic.ObjectDetectionJob;
+import bottlecapdetection.model.NativeMemoryStatistics;
+import bottlecapdetection.model.ObjectDetectionJobResult;
+import bottlecapdetection.model.PipelineStageStatistics;
+import bottlecapdetection.model.StaticSceneMode;
+import bottlecapdetection.model.VideoFrame;
 
 public class VideoTests {
 	
@@ -52,4 +91,418 @@ public class VideoTests {
 
 	}
 	
+	/**
+	 * The loader seeks to the second quarter. The extracted frames must be the same as by decoding
+	 * the video from the beginning.
+	 */
+	
+	@Test
+	public void seekedFramesTest() throws Exception {
+		String filename = StaticSceneTests.createTestVideo("seek.mp4", 200, 90, 110);
+		List<Mat> matList = Mp4FileLoader.loadMP4File(filename);
+		
+		FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(filename);
+		OpenCVFrameConverter.ToMat converterToMat = new OpenCVFrameConverter.ToMat();
+		grabber.start();
+		Frame frame;
+		int idx = 0;
+		while ((frame = grabber.grabImage()) != null) {
+			Mat expected = converterToMat.convert(frame);
+			if (matList.get(idx) != null) {
+				Mat diff = new Mat();
+				absdiff(expected, matList.get(idx), diff);
+				assertEquals(0, countNonZero(diff.reshape(1, 0)), "Frame " + idx);
+			}
+			idx++;
+		}
+		grabber.stop();
+		grabber.close();
+		
+		assertEquals(200, matList.size());
+		assertNull(matList.get(48));
+		assertTrue(matList.get(49) != null);
+		assertTrue(matList.get(149) != null);
+		assertNull(matList.get(150));
+	}
+	
+	/**
+	 * With a stride of k, just every k-th frame of the range is streamed.
+	 */
+	
+	@Test
+	public void streamWithStrideTest() throws Exception {
+		String filename = StaticSceneTests.createTestVideo("stride.mp4", 200, 90, 110);
+		List<Integer> indices = new ArrayList<>();
+		Mp4FileLoader.streamMP4File(filename, new FrameConsumer() {
+			@Override
+			public void start(int firstIdx, int lastIdx, int totalFrameCnt) throws MatException {
+				assertEquals(49, firstIdx);
+				assertEquals(149, lastIdx);
+			}
+			@Override
+			public boolean accept(VideoFrame videoFrame) throws MatException {
+				indices.add(videoFrame.getFrameIdx());
+				videoFrame.deallocate();
+				return true;
+			}
+		}, -1, -1, 10);
+		
+		assertEquals(11, indices.size());
+		assertEquals(49, indices.get(0));
+		assertEquals(149, indices.get(10));
+	}
+	
+	/**
+	 * Released Mats are handed out again for the same size and type. Streaming a video twice
+	 * must not allocate new frame buffers for every frame.
+	 */
+	
+	@Test
+	public void matPoolTest() throws Exception {
+		Mat mat = MatPool.acquire(24, 32, CV_8UC3);
+		MatPool.release(mat);
+		Mat reused = MatPool.acquire(24, 32, CV_8UC3);
+		assertTrue(mat.equals(reused));
+		Mat other = MatPool.acquire(24, 32, CV_8UC1);
+		assertFalse(mat.equals(other));
+		MatPool.release(reused);
+		MatPool.release(other);
+		
+		String filename = StaticSceneTests.createTestVideo("pool.mp4", 200, 90, 110);
+		FrameConsumer consumer = new FrameConsumer() {
+			@Override
+			public void start(int firstIdx, int lastIdx, int totalFrameCnt) throws MatException {
+			}
+			
+			@Override
+			public boolean accept(VideoFrame videoFrame) throws MatException {
+				videoFrame.deallocate();
+				return true;
+			}
+			
+			@Override
+			public int getProxyScale() {
+				return 4;
+			}
+		};
+		Mp4FileLoader.streamMP4File(filename, consumer);
+		long allocatedCnt = MatPool.getAllocatedCnt();
+		Mp4FileLoader.streamMP4File(filename, consumer);
+		
+		// Just the buffers of frames in flight between decoder and consumer may be new, depending on the thread timing
+		assertTrue(MatPool.getAllocatedCnt() - allocatedCnt <= 3 * (Constants.STATICSCENE_STREAM_QUEUE_SIZE + 2));
+		assertTrue(MatPool.getPooledBytes() <= Constants.MATPOOL_MAX_BYTES);
+	}
+	
+	/**
+	 * Native objects of a scope are freed at its end, except retained and pooled ones. Processing the same
+	 * video several times and releasing the results must not increase the native memory tracked by JavaCPP.
+	 */
+	
+	@Test
+	public void nativeMemoryScopeTest() throws Exception {
+		Mat kept;
+		Mat freed;
+		Mat pooled;
+		try (NativeMemoryScope scope = new NativeMemoryScope("test")) {
+			kept = scope.retain(new Mat(100, 100, CV_8UC3));
+			freed = new Mat(100, 100, CV_8UC3);
+			pooled = MatPool.acquire(50, 50, CV_8UC1);
+		}
+		assertFalse(kept.isNull());
+		assertTrue(freed.isNull());
+		assertFalse(pooled.isNull());
+		MatPool.release(pooled);
+		kept.deallocate();
+		
+		String filename = StaticSceneTests.createImageVideo("scope.mp4", "pic01.png", 60);
+		int scopeCnt = getScopeCnt("localization");
+		long[] trackedBytes = new long[4];
+		for (int run = 0; run < trackedBytes.length; run++) {
+			ObjectDetectionJob job = new ObjectDetectionJob(new File(filename), null);
+			job.process();
+			assertEquals("", job.getResult().getFailedMsg());
+			assertTrue(job.getResult().getObjectDetectionResult().getObjects().size() > 0);
+			job.getResult().release();
+			
+			System.gc();
+			Thread.sleep(100);
+			Pointer.deallocateReferences();
+			trackedBytes[run] = Pointer.totalBytes();
+		}
+		assertTrue(trackedBytes[3] <= trackedBytes[1]);
+		
+		// Other tests may have processed videos before
+		assertEquals(scopeCnt + 4, getScopeCnt("localization"));
+		for (NativeMemoryStatistics statistics : NativeMemoryScope.getStatistics()) {
+			if (statistics.getStage().equals("localization")) {
+				assertTrue(statistics.getRetainedBytes() > 0);
+			}
+		}
+	}
+	
+	/**
+	 * The executor admits a job just, if its estimated memory fits into the budget: With a budget of 1 MB
+	 * the jobs run one after another, with a large budget in parallel. The results are the same in both cases
+	 * and a missing video fails just its own job.
+	 */
+	
+	@Test
+	public void executorTest() throws Exception {
+		String filename1 = StaticSceneTests.createImageVideo("batch/batch01.mp4", "pic01.png", 60);
+		String filename2 = StaticSceneTests.createImageVideo("batch/batch02.mp4", "pic02.png", 60);
+		assertEquals(1920L * 1080 * 3 * (Constants.STATICSCENE_STREAM_QUEUE_SIZE + Constants.STATICSCENE_STREAM_MAX_CANDIDATES + 2 + Constants.JOBS_FRAME_OVERHEAD), Mp4FileLoader.estimateFrameBufferBytes(filename1, StaticSceneMode.STREAMING));
+		
+		List<File> videoFiles = List.of(new File(filename1), new File("missing.mp4"), new File(filename2));
+		List<ObjectDetectionJobResult> sequentialResults;
+		try (ObjectDetectionExecutor executor = new ObjectDetectionExecutor(2, 1)) {
+			sequentialResults = executor.executeAll(videoFiles, null);
+			assertEquals(1, executor.getPeakRunningJobs());
+		}
+		List<ObjectDetectionJobResult> parallelResults;
+		try (ObjectDetectionExecutor executor = new ObjectDetectionExecutor(2, 4096)) {
+			parallelResults = executor.executeAll(videoFiles, null);
+			assertEquals(0, executor.getRunningJobs());
+		}
+		
+		assertEquals(3, parallelResults.size());
+		assertFalse(parallelResults.get(1).getFailedMsg().isEmpty());
+		for (int i : new int[] {0, 2}) {
+			assertEquals("", sequentialResults.get(i).getFailedMsg());
+			assertEquals("", parallelResults.get(i).getFailedMsg());
+			assertEquals(videoFiles.get(i), parallelResults.get(i).getVideoFile());
+			assertEquals(sequentialResults.get(i).getClassificationResult().toString(), parallelResults.get(i).getClassificationResult().toString());
+			sequentialResults.get(i).release();
+			parallelResults.get(i).release();
+		}
+	}
+	
+	/**
+	 * All videos pass all stages of the pipeline with the same results as a single job. A missing video fails
+	 * in the first stage and is passed through to the output. The queues never hold more jobs than their capacity.
+	 */
+	
+	@Test
+	public void pipelineTest() throws Exception {
+		String filename1 = StaticSceneTests.createImageVideo("batch/batch01.mp4", "pic01.png", 60);
+		String filename2 = StaticSceneTests.createImageVideo("batch/batch02.mp4", "pic02.png", 60);
+		ObjectDetectionJob job = new ObjectDetectionJob(new File(filename1), null);
+		job.process();
+		String expected = job.getResult().getClassificationResult().toString();
+		job.getResult().release();
+		
+		List<ObjectDetectionJobResult> results = Collections.synchronizedList(new ArrayList<>());
+		ObjectDetectionPipeline pipeline = new ObjectDetectionPipeline(null, results::add, 1, 2, 1, 1, 1);
+		for (String filename : new String[] {filename1, "missing.mp4", filename2, filename1}) {
+			pipeline.submit(new File(filename));
+		}
+		pipeline.close();
+		
+		assertEquals(4, results.size());
+		int failedCnt = 0;
+		for (ObjectDetectionJobResult result : results) {
+			if (!result.getFailedMsg().isEmpty()) {
+				assertEquals("missing.mp4", result.getVideoFile().getName());
+				failedCnt++;
+			} else if (result.getVideoFile().getPath().equals(filename1)) {
+				assertEquals(expected, result.getClassificationResult().toString());
+				assertTrue(result.getDuration() > 0);
+			}
+			result.release();
+		}
+		assertEquals(1, failedCnt);
+		
+		List<PipelineStageStatistics> statistics = pipeline.getStatistics();
+		assertEquals(4, statistics.size());
+		assertEquals("OUTPUT", statistics.get(3).getStage());
+		for (PipelineStageStatistics stageStatistics : statistics) {
+			assertEquals(4, stageStatistics.getProcessedCnt());
+			assertEquals(0, stageStatistics.getBusyWorkers());
+			assertTrue(stageStatistics.getMaxQueueDepth() <= 1);
+		}
+	}
+	
+	/**
+	 * An error thrown by the output does not stop its worker: the following results are given to the output
+	 * and the pipeline can be closed.
+	 */
+	
+	@Test
+	public void pipelineErrorTest() {
+		List<ObjectDetectionJobResult> results = Collections.synchronizedList(new ArrayList<>());
+		ObjectDetectionPipeline pipeline = new ObjectDetectionPipeline(null, result -> {
+			results.add(result);
+			if (results.size() == 1) {
+				throw new OutOfMemoryError("Test");
+			}
+		}, 1, 1, 1, 1, 1);
+		assertTimeoutPreemptively(Duration.ofSeconds(60), () -> {
+			for (int i = 0; i < 4; i++) {
+				pipeline.submit(new File("missing" + i + ".mp4"));
+			}
+			pipeline.close();
+		});
+		
+		assertEquals(4, results.size());
+		for (PipelineStageStatistics stageStatistics : pipeline.getStatistics()) {
+			assertEquals(4, stageStatistics.getProcessedCnt());
+		}
+	}
+	
+	/**
+	 * The server answers concurrent requests for video paths and uploaded videos with the same counts and
+	 * csv lines as a job. A missing video is answered with status 422, a malformed json body with status 400.
+	 */
+	
+	@Test
+	public void serverTest() throws Exception {
+		String filename = StaticSceneTests.createImageVideo("batch/batch01.mp4", "pic01.png", 60);
+		ObjectDetectionJob job = new ObjectDetectionJob(new File(filename), null);
+		job.process();
+		int expectedTotal = job.getResult().getClassificationResult().totalCnt();
+		List<String> expectedCsv = job.getResult().getCsvLines();
+		job.getResult().release();
+		
+		try (DetectionServer server = new DetectionServer(0, null)) {
+			server.start();
+			HttpClient client = HttpClient.newHttpClient();
+			URI detectUri = URI.create("http://localhost:" + server.getPort() + "/detect");
+			
+			List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>();
+			responses.add(client.sendAsync(HttpRequest.newBuilder(detectUri).POST(HttpRequest.BodyPublishers.ofString(new File(filename).getAbsolutePath())).build(), HttpResponse.BodyHandlers.ofString()));
+			responses.add(client.sendAsync(HttpRequest.newBuilder(detectUri).POST(HttpRequest.BodyPublishers.ofString("{\"video\": \"" + new File(filename).getAbsolutePath() + "\"}")).build(), HttpResponse.BodyHandlers.ofString()));
+			responses.add(client.sendAsync(HttpRequest.newBuilder(detectUri).header("Content-Type", "video/mp4").POST(HttpRequest.BodyPublishers.ofFile(new File(filename).toPath())).build(), HttpResponse.BodyHandlers.ofString()));
+			for (CompletableFuture<HttpResponse<String>> future : responses) {
+				HttpResponse<String> response = future.get();
+				assertEquals(200, response.statusCode());
+				JsonObject json = JsonParser.parseString(response.body()).getAsJsonObject();
+				assertEquals("", json.get("failedMsg").getAsString());
+				assertEquals(expectedCsv.size(), json.getAsJsonArray("csv").size());
+				assertEquals(expectedCsv.get(0), json.getAsJsonArray("csv").get(0).getAsString());
+				JsonObject counts = json.getAsJsonObject("counts");
+				assertEquals(expectedTotal, counts.get("bottleCapFaceUpCnt").getAsInt() + counts.get("bottleCapFaceDownCnt").getAsInt() + counts.get("bottleCapDeformedCnt").getAsInt() + counts.get("DistractorCnt").getAsInt());
+			}
+			
+			HttpResponse<String> missing = client.send(HttpRequest.newBuilder(detectUri).POST(HttpRequest.BodyPublishers.ofString("missing.mp4")).build(), HttpResponse.BodyHandlers.ofString());
+			assertEquals(422, missing.statusCode());
+			assertTrue(missing.body().contains("FileNotFound"));
+			
+			for (String body : new String[] {"{\"video\": ", "{\"video\": [1, 2]}", "{\"video\": null}"}) {
+				HttpResponse<String> malformed = client.send(HttpRequest.newBuilder(detectUri).POST(HttpRequest.BodyPublishers.ofString(body)).build(), HttpResponse.BodyHandlers.ofString());
+				assertEquals(400, malformed.statusCode(), body);
+			}
+			
+			HttpResponse<String> health = client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/health")).build(), HttpResponse.BodyHandlers.ofString());
+			assertEquals(200, health.statusCode());
+			assertEquals(4, JsonParser.parseString(health.body()).getAsJsonObject().get("processedJobs").getAsInt());
+		}
+	}
+	
+	/**
+	 * Files written into the watched directory are processed once they are stable, a file written in two parts
+	 * just once. After a restart the files of the ledger are not processed again, but new files are.
+	 */
+	
+	@Test
+	public void watchFolderTest() throws Exception {
+		String filename1 = StaticSceneTests.createImageVideo("batch/batch01.mp4", "pic01.png", 60);
+		String filename2 = StaticSceneTests.createImageVideo("batch/batch02.mp4", "pic02.png", 60);
+		File watchDir = new File(StaticSceneTests.testOutputPath, "watch/in");
+		File outputDir = new File(StaticSceneTests.testOutputPath, "watch/out");
+		for (File dir : new File[] {watchDir, outputDir}) {
+			dir.mkdirs();
+			for (File file : dir.listFiles()) {
+				file.delete();
+			}
+		}
+		
+		try (WatchFolder watchFolder = new WatchFolder(watchDir, outputDir, 2, 500, 100)) {
+			watchFolder.start();
+			byte[] video1 = Files.readAllBytes(new File(filename1).toPath());
+			try (FileOutputStream out = new FileOutputStream(new File(watchDir, "watch01.mp4"))) {
+				out.write(video1, 0, video1.length / 2);
+				out.flush();
+				Thread.sleep(300);
+				out.write(video1, video1.length / 2, video1.length - video1.length / 2);
+			}
+			Files.copy(new File(filename2).toPath(), new File(watchDir, "watch02.mp4").toPath());
+			waitForProcessedFiles(watchFolder, 2);
+		}
+		assertTrue(new File(outputDir, "watch01.csv").exists());
+		assertTrue(new File(outputDir, "watch02.csv").exists());
+		List<String> ledger = Files.readAllLines(new File(outputDir, Constants.WATCH_LEDGER_FILE).toPath());
+		assertEquals(2, ledger.size());
+		for (String line : ledger) {
+			assertTrue(line.contains(",ok,watch0"));
+		}
+		
+		try (WatchFolder watchFolder = new WatchFolder(watchDir, outputDir, 2, 500, 100)) {
+			watchFolder.start();
+			Thread.sleep(1500);
+			assertEquals(0, watchFolder.getProcessedCnt());
+			Files.copy(new File(filename1).toPath(), new File(watchDir, "watch03.mp4").toPath());
+			waitForProcessedFiles(watchFolder, 1);
+		}
+		assertEquals(3, Files.readAllLines(new File(outputDir, Constants.WATCH_LEDGER_FILE).toPath()).size());
+	}
+	
+	private static void waitForProcessedFiles(WatchFolder watchFolder, int processedCnt) throws InterruptedException {
+		for (int i = 0; i < 600 && watchFolder.getProcessedCnt() < processedCnt; i++) {
+			Thread.sleep(100);
+		}
+		assertEquals(processedCnt, watchFolder.getProcessedCnt());
+	}
+	
+	private static int getScopeCnt(String stage) {
+		for (NativeMemoryStatistics statistics : NativeMemoryScope.getStatistics()) {
+			if (statistics.getStage().equals(stage)) {
+				return statistics.getScopeCnt();
+			}
+		}
+		return 0;
+	}
+	
+	/**
+	 * The videos of a batch are given by a directory, a glob pattern or a manifest file. A missing video
+	 * fails just its own entry: the other videos are processed and all of them are listed in the summary.
+	 */
+	
+	@Test
+	public void batchTest() throws Exception {
+		String batchPath = StaticSceneTests.testOutputPath + "/batch";
+		String filename1 = StaticSceneTests.createImageVideo("batch/batch01.mp4", "pic01.png", 60);
+		String filename2 = StaticSceneTests.createImageVideo("batch/batch02.mp4", "pic02.png", 60);
+		
+		List<File> dirFiles = ObjectDetectionBatch.resolveVideoFiles(batchPath);
+		assertEquals(2, dirFiles.size());
+		assertEquals(new File(filename1), dirFiles.get(0));
+		assertEquals(new File(filename2), dirFiles.get(1));
+		assertEquals(dirFiles, ObjectDetectionBatch.resolveVideoFiles(batchPath + "/batch0*.mp4"));
+		assertEquals(1, ObjectDetectionBatch.resolveVideoFiles(batchPath + "/*02.mp4").size());
+		assertTrue(ObjectDetectionBatch.isSingleVideo(filename1));
+		assertFalse(ObjectDetectionBatch.isSingleVideo(batchPath + "/*.mp4"));
+		
+		File manifest = new File(batchPath, "manifest.txt");
+		Files.write(manifest.toPath(), List.of("# videos of the batch test", "batch02.mp4", "", "missing.mp4", new File(filename1).getAbsolutePath()));
+		List<File> manifestFiles = ObjectDetectionBatch.resolveVideoFiles(manifest.getPath());
+		assertEquals(3, manifestFiles.size());
+		assertEquals("batch02.mp4", manifestFiles.get(0).getName());
+		assertEquals(new File(filename1).getAbsoluteFile(), manifestFiles.get(2));
+		
+		File outputDir = new File(batchPath, "result");
+		outputDir.mkdirs();
+		ObjectDetectionBatch batch = new ObjectDetectionBatch(manifestFiles, outputDir);
+		batch.execute();
+		
+		assertEquals(3, batch.getResults().size());
+		assertEquals("", batch.getResults().get(0).getFailedMsg());
+		assertFalse(batch.getResults().get(1).getFailedMsg().isEmpty());
+		assertEquals("", batch.getResults().get(2).getFailedMsg());
+		assertTrue(new File(outputDir, "batch01.csv").exists());
+		assertTrue(new File(outputDir, "batch02.csv").exists());
+		List<String> summary = Files.readAllLines(new File(outputDir, Constants.GENERAL_BATCH_SUMMARY_FILE).toPath());
+		assertEquals(4, summary.size());
+		assertTrue(summary.get(2).startsWith("'missing.mp4'"));
+	}
+	
 }